@@ -0,0 +1,106 @@
+package com.quest.access.common.mysql;
+
+import org.json.JSONObject;
+
+/**
+ * This file holds a statement generated once by Database.QueryBuilder.compile()
+ * with ? placeholders in place of its values. A compiled query is immutable so
+ * it can be kept in a static field and executed any number of times with new
+ * values, the sql is never built again and the prepared statement cached for
+ * it on each connection is reused e.g.
+ * <code>
+ * private static final CompiledQuery SET_VALUE = new Database("user_server")
+ * .query()
+ * .update("CONF_DATA")
+ * .set("CONF_VALUE=?")
+ * .where("CONF_KEY=?")
+ * .compile();
+ *
+ * SET_VALUE.execute("1", "enable_cache");
+ * </code>
+ *
+ * @author connie
+ */
+public final class CompiledQuery {
+
+    private final Database db;
+
+    private final String sql;
+
+    private final int paramCount;
+
+    CompiledQuery(Database db, String sql) {
+        this.db = db;
+        this.sql = sql;
+        this.paramCount = countPlaceholders(sql);
+    }
+
+    /**
+     * executes the query on the database it was built with
+     *
+     * @param params the values of the ? placeholders in order
+     * @return a json object with the results of a select, an empty json object
+     * for other statements
+     */
+    public JSONObject execute(String... params) {
+        return execute(db, params);
+    }
+
+    /**
+     * executes the query on the given database
+     *
+     * @param db the database to execute the query on
+     * @param params the values of the ? placeholders in order
+     * @return a json object with the results of a select, an empty json object
+     * for other statements
+     */
+    public JSONObject execute(Database db, String... params) {
+        if (params.length != paramCount) {
+            throw new IllegalArgumentException("Expected " + paramCount + " values for " + sql + " but got " + params.length);
+        }
+        return db.query(sql, params);
+    }
+
+    /**
+     * @return the number of ? placeholders in the query
+     */
+    public int getParameterCount() {
+        return paramCount;
+    }
+
+    /**
+     * @return the generated sql
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+
+    /*
+     * counts the ? that are not inside a quoted string
+     */
+    private static int countPlaceholders(String sql) {
+        int count = 0;
+        char quote = 0;
+        for (int x = 0; x < sql.length(); x++) {
+            char c = sql.charAt(x);
+            if (quote != 0) {
+                if (c == '\\') {
+                    x++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
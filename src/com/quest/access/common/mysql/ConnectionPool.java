@@ -9,53 +9,724 @@ import com.quest.access.common.Logger;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
+import javax.servlet.ServletConfig;
+import org.json.JSONObject;
 
 /**
+ * This file implements a bounded pool of jdbc connections for every database
+ * name. A connection is checked out for the duration of a single statement and
+ * returned immediately afterwards, so concurrent servlet threads no longer
+ * share one mysql socket.
+ * <p>
+ * The pool is tuned with the following servlet init parameters, all of them
+ * optional
+ * <ol>
+ * <li>pool-min-size - connections kept open per database even when idle,
+ * default 1</li>
+ * <li>pool-max-size - the maximum number of connections per database, default
+ * 10</li>
+ * <li>pool-max-wait - milliseconds a thread waits for a free connection before
+ * failing, default 30000</li>
+ * <li>pool-max-queue - threads that may wait for a free connection of one
+ * database at the same time, further threads fail immediately, default 50</li>
+ * <li>pool-idle-timeout - milliseconds an idle connection is kept before it is
+ * closed, default 600000</li>
+ * <li>pool-max-lifetime - milliseconds after which a connection is recycled,
+ * default 1800000</li>
+ * <li>statement-cache-size - prepared statements cached per connection,
+ * default 64</li>
+ * <li>jdbc-parameters - driver properties appended to the jdbc url after the
+ * database name, default rewriteBatchedStatements=true for mysql and none for
+ * the embedded database</li>
+ * <li>jdbc-executor-queue - asynchronous statements that may wait for a jdbc
+ * thread, further statements fail with a DatabaseBusyException, default
+ * 1000</li>
+ * <li>pool-per-server - true to keep one pool for every server url instead of
+ * one for every database, a connection is switched to the database it is
+ * checked out for with Connection.setCatalog() so the number of connections
+ * grows with the threads and not with threads times databases. The pool limits
+ * then apply to the server, default false</li>
+ * </ol>
+ * pool-max-wait and pool-max-queue can be set for one database by appending
+ * its name e.g. pool-max-queue.user_server. Every database is a bulkhead, a
+ * thread that can not get a connection within these limits fails with a
+ * DatabaseBusyException so that threads piling onto a slow database do not
+ * starve requests to the other databases
+ * </p>
  *
  * @author connie
  */
 public class ConnectionPool {
-    
-    //use the session id to store the connection object
-    //disconnect the connection when the client returns
-    private static final ConcurrentHashMap<String,Connection> connections = new ConcurrentHashMap();
 
-    public static Connection getConnection(Database db, String userName, String host, String pass) {   
-        if (connections.containsKey(db.getDatabaseName())) { //recycle only known connections
+    /*
+     * the pools, keyed by database name
+     */
+    private static final ConcurrentHashMap<String, ConnectionPool> pools = new ConcurrentHashMap<>();
+
+    /*
+     * the pool every checked out connection came from
+     */
+    private static final ConcurrentHashMap<Connection, ConnectionPool> owners = new ConcurrentHashMap<>();
+
+    private static int minSize = 1;
+
+    private static int maxSize = 10;
+
+    private static long maxWait = 30000;
+
+    private static int maxQueue = 50;
+
+    /*
+     * true if the databases of a server share one pool
+     */
+    private static boolean perServer = false;
+
+    private static ServletConfig config;
+
+    private static long idleTimeout = 600000;
+
+    private static long maxLifetime = 1800000;
+
+    private static int executorQueue = 1000;
+
+    /*
+     * runs the statements of Database.queryAsync() and executeAsync(), it has
+     * as many threads as a pool has connections
+     */
+    private static ThreadPoolExecutor executor;
+
+    private static int statementCacheSize = 64;
+
+    private static String jdbcParameters = "rewriteBatchedStatements=true";
+
+    /*
+     * connections used within this many milliseconds are not validated again on borrow
+     */
+    private static final long VALIDATION_INTERVAL = 1000;
+
+    /*
+     * how often idle eviction and lifetime recycling runs in milliseconds
+     */
+    private static final long HOUSEKEEPING_INTERVAL = 30000;
+
+    private static ScheduledExecutorService housekeeper;
+
+    private final String key;
+
+    private final String dbName;
+
+    private final String url;
+
+    private final String userName;
+
+    private final String pass;
+
+    /*
+     * the maximum size this pool was created with
+     */
+    private final int capacity;
+
+    /*
+     * how long and how many threads may wait for a connection
+     */
+    private final long acquireTimeout;
+
+    private final int queueLimit;
+
+    /*
+     * idle connections, the most recently used connection is at the head
+     */
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+
+    /*
+     * connections that are currently checked out
+     */
+    private final ConcurrentHashMap<Connection, PooledConnection> leased = new ConcurrentHashMap<>();
+
+    /*
+     * one permit for every connection that may be checked out at the same time
+     */
+    private final Semaphore permits;
+
+    private final AtomicInteger total = new AtomicInteger();
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong borrows = new AtomicLong();
+
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    private final AtomicInteger maxWaiting = new AtomicInteger();
+
+    private final AtomicLong created = new AtomicLong();
+
+    private final AtomicLong destroyed = new AtomicLong();
+
+    private ConnectionPool(String key, String dbName, String url, String userName, String pass) {
+        this.key = key;
+        this.dbName = dbName;
+        this.url = url;
+        this.userName = userName;
+        this.pass = pass;
+        this.capacity = maxSize;
+        //a shared pool is limited as a whole, named by its url
+        String name = dbName.isEmpty() ? url : dbName;
+        this.acquireTimeout = config == null ? maxWait : longParam(config, "pool-max-wait." + name, maxWait);
+        this.queueLimit = config == null ? maxQueue : intParam(config, "pool-max-queue." + name, maxQueue);
+        this.permits = new Semaphore(capacity, true);
+    }
+
+    /**
+     * reads the pool settings from the servlet init parameters, this should be
+     * called before the first connection is requested since existing pools keep
+     * the maximum size they were created with
+     *
+     * @param config the servlet config containing the pool-* init parameters
+     */
+    public static void configure(ServletConfig config) {
+        ConnectionPool.config = config;
+        maxQueue = Math.max(0, intParam(config, "pool-max-queue", maxQueue));
+        perServer = Boolean.parseBoolean(config.getInitParameter("pool-per-server")) && Dialect.getDialect().supportsCatalogs();
+        minSize = intParam(config, "pool-min-size", minSize);
+        maxSize = Math.max(1, intParam(config, "pool-max-size", maxSize));
+        minSize = Math.min(minSize, maxSize);
+        maxWait = longParam(config, "pool-max-wait", maxWait);
+        idleTimeout = longParam(config, "pool-idle-timeout", idleTimeout);
+        maxLifetime = longParam(config, "pool-max-lifetime", maxLifetime);
+        statementCacheSize = intParam(config, "statement-cache-size", statementCacheSize);
+        executorQueue = Math.max(1, intParam(config, "jdbc-executor-queue", executorQueue));
+        String params = config.getInitParameter("jdbc-parameters");
+        jdbcParameters = params != null ? params.trim() : Dialect.getDialect().getDefaultJdbcParameters();
+    }
+
+    /**
+     * checks out a connection to the specified database, the connection must
+     * be handed back with releaseConnection() once the statement is done
+     *
+     * @param db the database we want a connection to
+     * @param userName the mysql user name
+     * @param host the jdbc url without the database name
+     * @param pass the mysql password
+     * @return a validated connection reserved for the calling thread
+     * @see #releaseConnection(com.quest.access.common.mysql.Database,
+     * java.sql.Connection)
+     */
+    public static Connection getConnection(Database db, String userName, String host, String pass) {
+        return getConnection(db, userName, host, pass, false);
+    }
+
+    /**
+     * checks out a connection to the specified database on a replica, every
+     * replica url has its own pool of the same size as the primary pool
+     *
+     * @param replica true if host is the url of a replica
+     * @see #getConnection(com.quest.access.common.mysql.Database,
+     * java.lang.String, java.lang.String, java.lang.String)
+     */
+    public static Connection getConnection(Database db, String userName, String host, String pass, boolean replica) {
+        String key = poolKey(db.getDatabaseName(), host, replica);
+        ConnectionPool pool = pools.get(key);
+        if (pool == null) {
+            //the connections of a shared pool are opened without a database
+            ConnectionPool newPool = new ConnectionPool(key, perServer ? "" : db.getDatabaseName(), host, userName, pass);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+                startHousekeeper();
+            }
+        }
+        Connection conn = pool.borrow();
+        if (perServer) {
             try {
-                Connection conn = connections.get(db.getDatabaseName());
-                if (conn.isClosed()) {
-                    conn = createConnection(db.getDatabaseName(), host, userName, pass);
-                    connections.put(db.getDatabaseName(),conn);
-                    return conn;
+                pool.useCatalog(conn, db.getDatabaseName());
+            } catch (SQLException ex) {
+                pool.release(conn);
+                throw new RuntimeException(ex);
+            }
+        }
+        owners.put(conn, pool);
+        return conn;
+    }
+
+    /**
+     * returns the number of connections of a replica pool that are checked out
+     * or being waited for, used to pick the least loaded replica
+     *
+     * @param db the database
+     * @param host the url of the replica
+     * @return the load of the pool or 0 if it has not been created yet
+     */
+    public static int getLoad(Database db, String host) {
+        ConnectionPool pool = pools.get(poolKey(db.getDatabaseName(), host, true));
+        return pool == null ? 0 : pool.getActiveCount() + pool.getWaitingCount();
+    }
+
+    /*
+     * primary pools are keyed by the database name and replica pools by the
+     * database name and the replica url, shared pools only by the url
+     */
+    private static String poolKey(String dbName, String host, boolean replica) {
+        if (perServer) {
+            return "@" + host;
+        }
+        return replica ? dbName + "@" + host : dbName;
+    }
+
+    /**
+     * returns a connection obtained from getConnection() to its pool
+     *
+     * @param db the database the connection was obtained for
+     * @param conn the connection to return, null is ignored
+     */
+    public static void releaseConnection(Database db, Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        ConnectionPool pool = owners.remove(conn);
+        if (pool != null) {
+            pool.release(conn);
+        }
+    }
+
+    /**
+     * returns the statement cache of a connection checked out with
+     * getConnection(), connections that did not come from the pool get an
+     * empty cache that closes every statement on release
+     *
+     * @param db the database the connection was obtained for
+     * @param conn the checked out connection
+     */
+    static StatementCache getStatementCache(Database db, Connection conn) {
+        ConnectionPool pool = owners.get(conn);
+        PooledConnection pc = pool == null ? null : pool.leased.get(conn);
+        return pc == null ? new StatementCache(conn, 0) : pc.statements;
+    }
+
+    /**
+     * @return the driver properties appended to the jdbc url of every
+     * connection e.g. rewriteBatchedStatements=true&amp;useServerPrepStmts=true
+     */
+    public static String getJdbcParameters() {
+        return jdbcParameters;
+    }
+
+    /**
+     * @param dbName the name of the database
+     * @return the primary pool for the given database or null if no
+     * connection has been requested for it yet or the databases share the
+     * pools of their servers
+     */
+    public static ConnectionPool getPool(String dbName) {
+        return pools.get(dbName);
+    }
+
+    /**
+     * returns the state of every pool keyed by database name, replica pools are
+     * keyed by database name and url. This includes the active and idle counts
+     * and how long threads waited for a connection
+     */
+    public static JSONObject getStatistics() {
+        HashMap<String, Object> stats = new HashMap<>();
+        for (ConnectionPool pool : pools.values()) {
+            stats.put(pool.key, pool.toJSON());
+        }
+        return new JSONObject(stats);
+    }
+
+    /**
+     * closes every pooled connection, this is called when the servlet is
+     * destroyed
+     */
+    public static void shutdown() {
+        synchronized (ConnectionPool.class) {
+            if (housekeeper != null) {
+                housekeeper.shutdownNow();
+                housekeeper = null;
+            }
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+        for (ConnectionPool pool : pools.values()) {
+            PooledConnection pc;
+            while ((pc = pool.idle.pollFirst()) != null) {
+                pool.destroy(pc);
+            }
+        }
+        pools.clear();
+        owners.clear();
+    }
+
+    /**
+     * @return the number of connections currently checked out
+     */
+    public int getActiveCount() {
+        return leased.size();
+    }
+
+    /**
+     * @return the number of open connections waiting to be checked out
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return the number of open connections, active and idle
+     */
+    public int getTotalCount() {
+        return total.get();
+    }
+
+    /**
+     * @return the number of threads currently waiting for a connection
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * @return the average time in milliseconds threads waited for a connection
+     */
+    public double getAverageWaitMillis() {
+        long count = borrows.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @return the longest time in milliseconds a thread waited for a connection
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1000000.0;
+    }
+
+    /**
+     * @return the number of requests that gave up waiting for a connection
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the number of requests that failed immediately because
+     * pool-max-queue threads were already waiting
+     */
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+
+    private JSONObject toJSON() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("active", getActiveCount());
+        stats.put("idle", getIdleCount());
+        stats.put("total", getTotalCount());
+        stats.put("waiting", getWaitingCount());
+        stats.put("min_size", minSize);
+        stats.put("max_size", capacity);
+        stats.put("borrows", borrows.get());
+        stats.put("avg_wait_ms", getAverageWaitMillis());
+        stats.put("max_wait_ms", getMaxWaitMillis());
+        stats.put("timeouts", getTimeoutCount());
+        stats.put("rejections", getRejectionCount());
+        stats.put("max_queue", queueLimit);
+        stats.put("max_waiting", maxWaiting.get());
+        stats.put("acquire_timeout", acquireTimeout);
+        stats.put("created", created.get());
+        stats.put("destroyed", destroyed.get());
+        return new JSONObject(stats);
+    }
+
+    private Connection borrow() {
+        long start = System.nanoTime();
+        int queued = waiting.incrementAndGet();
+        try {
+            int max = maxWaiting.get();
+            while (queued > max && !maxWaiting.compareAndSet(max, queued)) {
+                max = maxWaiting.get();
+            }
+            boolean acquired = false;
+            if (queued > queueLimit) {
+                //the queue is full, only take a connection that is free right now
+                acquired = permits.tryAcquire();
+                if (!acquired) {
+                    rejections.incrementAndGet();
+                    throw new DatabaseBusyException(dbName.isEmpty() ? url : dbName, queueLimit + " requests are already waiting for a connection");
+                }
+            }
+            //never wait past the deadline of the request
+            long remaining = Database.getRemainingMillis();
+            boolean deadlineFirst = remaining >= 0 && remaining < acquireTimeout;
+            if (!acquired && !permits.tryAcquire(deadlineFirst ? remaining : acquireTimeout, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                if (deadlineFirst) {
+                    throw new RequestTimeoutException("The request deadline passed while waiting for a connection to " + (dbName.isEmpty() ? url : dbName));
                 }
-                return conn;
+                throw new DatabaseBusyException(dbName.isEmpty() ? url : dbName, "timed out after " + acquireTimeout + "ms waiting for a connection");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        long waited = System.nanoTime() - start;
+        borrows.incrementAndGet();
+        totalWaitNanos.addAndGet(waited);
+        long max = maxWaitNanos.get();
+        while (waited > max && !maxWaitNanos.compareAndSet(max, waited)) {
+            max = maxWaitNanos.get();
+        }
+        try {
+            PooledConnection pc;
+            while ((pc = idle.pollFirst()) != null) {
+                if (isUsable(pc)) {
+                    leased.put(pc.conn, pc);
+                    return pc.conn;
+                }
+                destroy(pc);
+            }
+            pc = create();
+            leased.put(pc.conn, pc);
+            return pc.conn;
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    private void release(Connection conn) {
+        PooledConnection pc = leased.remove(conn);
+        if (pc == null) {
+            return; //not checked out from this pool
+        }
+        try {
+            boolean closed;
+            try {
+                closed = conn.isClosed();
             } catch (SQLException ex) {
-                java.util.logging.Logger.getLogger(ConnectionPool.class.getName()).log(Level.SEVERE, null, ex);
-                return null;
+                closed = true;
             }
-        } else {
-            Connection conn = createConnection(db.getDatabaseName(), host, userName, pass); //these are anon 
-            connections.put(db.getDatabaseName(), conn);
-            return conn;
+            if (closed || isExpired(pc) || total.get() > capacity) {
+                destroy(pc);
+            } else {
+                pc.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(pc);
+            }
+        } finally {
+            permits.release();
         }
     }
 
+    private boolean isUsable(PooledConnection pc) {
+        if (isExpired(pc)) {
+            return false;
+        }
+        if (System.currentTimeMillis() - pc.lastUsed < VALIDATION_INTERVAL) {
+            return true;
+        }
+        try {
+            return pc.conn.isValid(5);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    /*
+     * switches a connection of a shared pool to the given database, the
+     * catalog is remembered so that a connection used for the same database
+     * again needs no round trip
+     */
+    private void useCatalog(Connection conn, String catalog) throws SQLException {
+        PooledConnection pc = leased.get(conn);
+        if (pc == null || catalog.equals(pc.catalog)) {
+            return;
+        }
+        pc.catalog = null;
+        conn.setCatalog(catalog);
+        pc.catalog = catalog;
+        pc.statements = pc.statementsFor(catalog);
+    }
+
+    private boolean isExpired(PooledConnection pc) {
+        return maxLifetime > 0 && System.currentTimeMillis() - pc.created > maxLifetime;
+    }
+
+    private PooledConnection create() {
+        PooledConnection pc = new PooledConnection(createConnection(dbName, url, userName, pass));
+        total.incrementAndGet();
+        created.incrementAndGet();
+        return pc;
+    }
+
+    private void destroy(PooledConnection pc) {
+        total.decrementAndGet();
+        destroyed.incrementAndGet();
+        try {
+            pc.conn.close();
+        } catch (SQLException ex) {
+            java.util.logging.Logger.getLogger(ConnectionPool.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    /*
+     * closes connections that have been idle too long or have outlived their
+     * maximum lifetime and tops the pool back up to its minimum size
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> iter = idle.descendingIterator(); //oldest first
+        while (iter.hasNext()) {
+            PooledConnection pc = iter.next();
+            boolean idleTooLong = idleTimeout > 0 && now - pc.lastUsed > idleTimeout && total.get() > minSize;
+            if ((idleTooLong || isExpired(pc)) && idle.remove(pc)) {
+                destroy(pc);
+            }
+        }
+        while (total.get() < minSize && permits.tryAcquire()) {
+            try {
+                idle.offerLast(create());
+            } catch (RuntimeException ex) {
+                break;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * returns the executor asynchronous statements run on, its threads are
+     * bounded by pool-max-size so they never wait for a connection held by
+     * another jdbc thread for long. When the queue is full the executor
+     * rejects the statement, it never runs on the calling thread where it
+     * would see the calling thread's transaction, pin and deadline
+     */
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(maxSize, maxSize, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(executorQueue), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "quest-jdbc-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.AbortPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private static synchronized void startHousekeeper() {
+        if (housekeeper != null) {
+            return;
+        }
+        housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "quest-pool-housekeeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        housekeeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (ConnectionPool pool : pools.values()) {
+                    try {
+                        pool.evict();
+                    } catch (Exception ex) {
+                        Logger.toConsole(ex, ConnectionPool.class);
+                    }
+                }
+            }
+        }, HOUSEKEEPING_INTERVAL, HOUSEKEEPING_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
     private static Connection createConnection(String dbName, String url, String userName, String pass) {
         try {
-            Class.forName("com.mysql.jdbc.Driver");
-            Connection conn = DriverManager.getConnection(url+dbName, userName, pass);
+            Dialect dialect = Dialect.getDialect();
+            Class.forName(dialect.getDriverClass());
+            Connection conn = DriverManager.getConnection(dialect.getUrl(url, dbName, jdbcParameters), userName, pass);
             return conn;
         } catch (Exception e) {
             Logger.toConsole(e, ConnectionPool.class);
             throw new RuntimeException(e);
         }
     }
-    
-    public static ConcurrentHashMap<String,Connection> getConnectionPool(){
-       return connections;
+
+    private static int intParam(ServletConfig config, String name, int fallback) {
+        String value = config.getInitParameter(name);
+        return value == null || value.trim().isEmpty() ? fallback : Integer.parseInt(value.trim());
+    }
+
+    private static long longParam(ServletConfig config, String name, long fallback) {
+        String value = config.getInitParameter(name);
+        return value == null || value.trim().isEmpty() ? fallback : Long.parseLong(value.trim());
+    }
+
+    /*
+     * a pooled connection together with the times used for eviction
+     */
+    private static class PooledConnection {
+
+        private final Connection conn;
+
+        private final long created;
+
+        private volatile long lastUsed;
+
+        private StatementCache statements;
+
+        /*
+         * the database a connection of a shared pool is switched to, server
+         * side prepared statements resolve their tables in the database they
+         * were prepared in so every database has its own statement cache
+         */
+        private String catalog;
+
+        private HashMap<String, StatementCache> catalogStatements;
+
+        PooledConnection(Connection conn) {
+            this.conn = conn;
+            this.statements = new StatementCache(conn, statementCacheSize);
+            this.created = System.currentTimeMillis();
+            this.lastUsed = this.created;
+        }
+
+        StatementCache statementsFor(String catalog) {
+            if (catalogStatements == null) {
+                catalogStatements = new HashMap<>();
+            }
+            StatementCache cache = catalogStatements.get(catalog);
+            if (cache == null) {
+                cache = new StatementCache(conn, statementCacheSize);
+                catalogStatements.put(catalog, cache);
+            }
+            return cache;
+        }
     }
 
-}
\ No newline at end of file
+}
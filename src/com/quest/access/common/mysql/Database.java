@@ -9,9 +9,23 @@ package com.quest.access.common.mysql;
 import com.quest.access.common.io;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.StringTokenizer;
 import java.util.logging.Level;
 import javax.servlet.ServletConfig;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -49,6 +63,57 @@ public class Database {
      */
     private static String defaultUrl;
 
+    /*
+     * the fetch size used by stream(), set from the stream-fetch-size init
+     * parameter or else by the dialect
+     * @see Dialect#getStreamFetchSize(java.lang.String)
+     */
+    private static int streamFetchSize = Integer.MIN_VALUE;
+
+    /*
+     * true to print every statement, read once from the debug-mode init
+     * parameter
+     */
+    private static boolean debug = false;
+
+    /*
+     * the urls of the read replicas, selects are sent to these when there are
+     * any and every other statement goes to defaultUrl
+     */
+    private static String[] replicaUrls = new String[0];
+
+    /*
+     * true to send a select to the replica with the fewest busy connections,
+     * false to go round the replicas in turn
+     */
+    private static boolean leastLoaded = false;
+
+    /*
+     * true to send the selects of a thread to the primary once the thread has
+     * written, so a request reads its own writes despite replication lag
+     */
+    private static boolean pinAfterWrite = true;
+
+    private static final AtomicInteger nextReplica = new AtomicInteger();
+
+    private static final ThreadLocal<Boolean> pinned = new ThreadLocal<>();
+
+    /*
+     * the System.nanoTime() by which the statements of the calling thread
+     * must have finished, set from the deadline of the request being served
+     */
+    private static final ThreadLocal<Long> deadline = new ThreadLocal<>();
+
+    /*
+     * cancels statements that are still running when their deadline passes
+     */
+    private static ScheduledExecutorService canceller;
+
+    /*
+     * the transaction started by inTransaction() on the calling thread
+     */
+    private static final ThreadLocal<BoundTransaction> transaction = new ThreadLocal<>();
+
     /*
      * the name of the database
      */
@@ -68,19 +133,328 @@ public class Database {
     }
     
     
+    /**
+     * checks out a pooled connection to this database, the connection must be
+     * handed back with releaseConnection() once the caller is done with it
+     */
     public Connection getConnection(){
-       return ConnectionPool.getConnectionPool().get(this.name);
+       BoundTransaction tx = transaction.get();
+       if (tx != null && tx.dbName.equals(name)) {
+           return tx.conn;
+       }
+       return ConnectionPool.getConnection(this, defaultUserName, defaultUrl, defaultPass);
     }
     
-    private void closeConn(String dbName){
+    /**
+     * returns a connection obtained from getConnection() to the pool
+     *
+     * @param conn the connection to return
+     */
+    public void releaseConnection(Connection conn){
+        release(this, conn);
+    }
+
+    /**
+     * runs the callback in a single database transaction. One pooled
+     * connection is bound to the calling thread with autocommit off and every
+     * statement executed through a Database of the same name, including
+     * batches, runs on it until the callback returns. The transaction is
+     * committed once when the callback returns and rolled back if it throws.
+     * <p>
+     * Calling inTransaction() again from inside the callback joins the
+     * running transaction, if the inner callback throws the whole transaction
+     * is rolled back. Queries run with queryAsync() execute on other threads
+     * and are not part of the transaction
+     * </p>
+     *
+     * @param callback the statements to execute
+     * @return the value returned by the callback
+     * @throws RuntimeException wrapping the exception thrown by the callback
+     * or the SQLException thrown by the commit
+     */
+    public <T> T inTransaction(TransactionCallback<T> callback) {
+        BoundTransaction tx = transaction.get();
+        if (tx != null) {
+            if (!tx.dbName.equals(name)) {
+                throw new IllegalStateException("A transaction on " + tx.dbName + " is already running on this thread");
+            }
+            try {
+                return callback.doInTransaction();
+            } catch (RuntimeException e) {
+                tx.rollbackOnly = true;
+                throw e;
+            } catch (Exception e) {
+                tx.rollbackOnly = true;
+                throw new RuntimeException(e);
+            }
+        }
+        Connection conn = ConnectionPool.getConnection(this, defaultUserName, defaultUrl, defaultPass);
+        tx = new BoundTransaction(name, conn);
+        transaction.set(tx);
+        boolean committed = false;
         try {
-            Connection conn = ConnectionPool.getConnectionPool().get(dbName); 
-            if (conn != null) {
-                conn.close();
-                ConnectionPool.getConnectionPool().remove(dbName); 
+            conn.setAutoCommit(false);
+            T result = callback.doInTransaction();
+            if (tx.rollbackOnly) {
+                throw new IllegalStateException("A nested transaction on " + name + " failed, rolling back");
             }
+            conn.commit();
+            committed = true;
+            return result;
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            transaction.remove();
+            try {
+                if (!committed) {
+                    conn.rollback();
+                }
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                java.util.logging.Logger.getLogger(Database.class.getName()).log(Level.FINE, null, e);
+            }
+            ConnectionPool.releaseConnection(this, conn);
+            if (committed) {
+                for (String sql : tx.writes) {
+                    afterWrite(this, sql);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the calling thread is inside inTransaction() on a
+     * database with this name
+     */
+    public boolean isInTransaction() {
+        BoundTransaction tx = transaction.get();
+        return tx != null && tx.dbName.equals(name);
+    }
 
+    /**
+     * @return true if the calling thread is inside inTransaction() on any
+     * database, the work of the transaction must stay on this thread
+     */
+    public static boolean isTransactionBound() {
+        return transaction.get() != null;
+    }
+
+    /*
+     * checks out the connection for a statement, inside a transaction this is
+     * the connection bound to the thread
+     */
+    private static Connection acquire(Database db, String sql) {
+        BoundTransaction tx = transaction.get();
+        if (tx != null && tx.dbName.equals(db.getDatabaseName())) {
+            return tx.conn;
+        }
+        return connectionFor(db, sql);
+    }
+
+    /*
+     * returns a connection from acquire() to its pool unless it is bound to a
+     * transaction
+     */
+    private static void release(Database db, Connection conn) {
+        BoundTransaction tx = transaction.get();
+        if (tx != null && tx.conn == conn) {
+            return;
+        }
+        ConnectionPool.releaseConnection(db, conn);
+    }
+
+    /**
+     * sends the selects of the calling thread to the primary until
+     * clearPrimaryPin() is called, this is done automatically after a write
+     * when the pin-primary-after-write init parameter is not false
+     */
+    public static void pinToPrimary() {
+        pinned.set(Boolean.TRUE);
+    }
+
+    /**
+     * @return true if the selects of the calling thread go to the primary
+     */
+    public static boolean isPinnedToPrimary() {
+        return pinned.get() != null;
+    }
+
+    /**
+     * lets the selects of the calling thread go to the replicas again, this is
+     * called once a request has been processed
+     */
+    public static void clearPrimaryPin() {
+        pinned.remove();
+    }
+
+    /**
+     * sets the time by which the statements executed by the calling thread
+     * must finish, every statement gets the remaining time as its query
+     * timeout and is cancelled if it is still running when the deadline
+     * passes. A statement started after the deadline fails with a
+     * RequestTimeoutException without being executed
+     *
+     * @param nanoTime the deadline as a System.nanoTime() value, 0 removes the
+     * deadline
+     */
+    public static void setDeadline(long nanoTime) {
+        if (nanoTime == 0) {
+            deadline.remove();
+        } else {
+            deadline.set(nanoTime);
+        }
+    }
+
+    /**
+     * @return the deadline of the calling thread as a System.nanoTime() value
+     * or 0 if it has none
+     */
+    public static long getDeadline() {
+        Long end = deadline.get();
+        return end == null ? 0 : end;
+    }
+
+    /**
+     * @return the milliseconds left before the deadline of the calling thread,
+     * 0 if it has passed or -1 if the thread has no deadline
+     */
+    public static long getRemainingMillis() {
+        Long end = deadline.get();
+        if (end == null) {
+            return -1;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()));
+    }
+
+    /*
+     * gives the statement the time left before the deadline of the calling
+     * thread as its query timeout and schedules its cancellation, returns null
+     * when the thread has no deadline
+     */
+    private static StatementCanceller startDeadline(Statement statement) throws SQLException {
+        long remaining = getRemainingMillis();
+        if (remaining < 0) {
+            return null;
+        }
+        if (remaining == 0) {
+            throw new RequestTimeoutException("The request deadline passed before the statement was executed");
+        }
+        // the query timeout is in whole seconds, the canceller enforces the exact deadline
+        statement.setQueryTimeout((int) Math.max(1, (remaining + 999) / 1000));
+        StatementCanceller task = new StatementCanceller(statement);
+        task.future = getCanceller().schedule(task, remaining, TimeUnit.MILLISECONDS);
+        return task;
+    }
+
+    /*
+     * stops the cancellation scheduled by startDeadline() and clears the query
+     * timeout of a statement that may be cached for other requests
+     */
+    private static void endDeadline(Statement statement, StatementCanceller task) {
+        if (task == null) {
+            return;
+        }
+        task.finish();
+        try {
+            statement.setQueryTimeout(0);
+        } catch (SQLException ex) {
+            java.util.logging.Logger.getLogger(Database.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    /*
+     * turns a failed statement into a RequestTimeoutException when it was
+     * cancelled or timed out because of the request deadline
+     */
+    private static RuntimeException failure(SQLException e) {
+        Long end = deadline.get();
+        if (end != null && (e instanceof SQLTimeoutException || end - System.nanoTime() <= 0)) {
+            return new RequestTimeoutException("The statement was cancelled, the request deadline passed", e);
+        }
+        return new RuntimeException(e);
+    }
+
+    private static synchronized ScheduledExecutorService getCanceller() {
+        if (canceller == null) {
+            canceller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "quest-statement-canceller");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return canceller;
+    }
+
+    /**
+     * stops the thread that cancels statements past their deadline, this is
+     * called when the servlet is destroyed
+     */
+    public static synchronized void shutdown() {
+        if (canceller != null) {
+            canceller.shutdownNow();
+            canceller = null;
+        }
+    }
+
+    /*
+     * checks out a connection for the statement, selects go to a replica when
+     * replicas are configured and the thread is not pinned to the primary. If
+     * the replica can not be reached the primary is used
+     */
+    private static Connection connectionFor(Database db, String sql) {
+        if (replicaUrls.length > 0 && pinned.get() == null && isRead(sql)) {
+            String replica = selectReplica(db);
+            try {
+                return ConnectionPool.getConnection(db, defaultUserName, replica, defaultPass, true);
+            } catch (RuntimeException ex) {
+                java.util.logging.Logger.getLogger(Database.class.getName()).log(Level.WARNING, "Replica " + replica + " unavailable, reading from the primary", ex);
+            }
+        }
+        return ConnectionPool.getConnection(db, defaultUserName, defaultUrl, defaultPass);
+    }
+
+    private static String selectReplica(Database db) {
+        if (!leastLoaded || replicaUrls.length == 1) {
+            return replicaUrls[(nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicaUrls.length];
+        }
+        String best = replicaUrls[0];
+        int bestLoad = Integer.MAX_VALUE;
+        for (String replica : replicaUrls) {
+            int load = ConnectionPool.getLoad(db, replica);
+            if (load < bestLoad) {
+                best = replica;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /*
+     * locking selects have to run on the primary
+     */
+    private static boolean isRead(String sql) {
+        String upper = sql.trim().toUpperCase();
+        return upper.startsWith("SELECT") && !upper.contains("FOR UPDATE") && !upper.contains("LOCK IN SHARE MODE");
+    }
+
+    /*
+     * called once a write has executed on the primary
+     */
+    private static void afterWrite(Database db, String sql) {
+        BoundTransaction tx = transaction.get();
+        if (tx != null && tx.dbName.equals(db.getDatabaseName())) {
+            // cached results are only dropped once the write is committed
+            tx.writes.add(sql);
+        } else {
+            QueryCache.invalidate(db, sql);
+        }
+        if (pinAfterWrite && replicaUrls.length > 0) {
+            pinned.set(Boolean.TRUE);
         }
     }
     
@@ -95,6 +469,11 @@ public class Database {
     
     public static void setConfig(ServletConfig conf){
         config = conf;
+        Dialect.configure(conf);
+        ConnectionPool.configure(conf);
+        QueryCache.configure(conf);
+        QueryStats.configure(conf);
+        debug = "true".equals(conf.getInitParameter("debug-mode"));
         String status = config.getInitParameter("production-status");
         String url = "";
         if(status.equals("online")){
@@ -111,74 +490,155 @@ public class Database {
             defaultUserName = uName;
             defaultPass = pass;
         }
+        else if(status.equals("embedded")){
+            String uName = config.getInitParameter("embedded-database-username");
+            String pass = config.getInitParameter("embedded-database-password");
+            url = config.getInitParameter("embedded-jdbc");
+            defaultUserName = uName == null ? "sa" : uName;
+            defaultPass = pass == null ? "" : pass;
+        }
+        if (url == null || url.trim().isEmpty()) {
+            url = Dialect.getDialect().getDefaultUrl();
+        }
         defaultUrl = url;
+        String replicas = config.getInitParameter(status + "-replica-jdbc");
+        ArrayList<String> urls = new ArrayList<>();
+        if (replicas != null) {
+            for (String replica : replicas.split(",")) {
+                if (!replica.trim().isEmpty()) {
+                    urls.add(replica.trim());
+                }
+            }
+        }
+        replicaUrls = urls.toArray(new String[urls.size()]);
+        leastLoaded = "least-loaded".equals(config.getInitParameter("replica-selection"));
+        String pin = config.getInitParameter("pin-primary-after-write");
+        pinAfterWrite = pin == null || Boolean.parseBoolean(pin.trim());
+        String fetchSize = config.getInitParameter("stream-fetch-size");
+        if (fetchSize != null && !fetchSize.trim().isEmpty()) {
+            streamFetchSize = Integer.parseInt(fetchSize.trim());
+        } else {
+            streamFetchSize = Dialect.getDialect().getStreamFetchSize(url + ConnectionPool.getJdbcParameters());
+        }
     }
 
  
 
     public JSONObject query(String sql) {
-        JSONObject json = new JSONObject();
         try {
-            ResultSet set = Database.executeQuery(sql, this);
-            if(set == null) return new JSONObject();
-            String[] labels = new String[set.getMetaData().getColumnCount() + 1];
-            for (int x = 1; x < labels.length; x++) {
-                labels[x] = set.getMetaData().getColumnLabel(x);
-                try {
-                    json.put(labels[x], new JSONArray());
-                } catch (JSONException ex) {
-
-                }
+            return run(sql, this, null, JSON_READER);
+        } catch (Exception ex) {
+            // a full pool or a passed deadline is not an empty result, the caller has to see it
+            DatabaseBusyException busy = DatabaseBusyException.find(ex);
+            if (busy != null) {
+                throw busy;
             }
-            while (set.next()) {
-                for (int x = 1; x < labels.length; x++) {
-                    try {
-                        String value = set.getString(x);
-                        ((JSONArray) json.get(labels[x])).put(value);
-                    } catch (Exception e) {
-
-                    }
-                }
+            RequestTimeoutException timeout = RequestTimeoutException.find(ex);
+            if (timeout != null) {
+                throw timeout;
             }
-            set.close();
-            //closeConn(name);
-            return json;
-        } catch (Exception ex) {
-            return json;
+            return new JSONObject();
         }
     }
 
     public JSONObject query(String psql, String... params) {
-        JSONObject json = new JSONObject();
-        try {
-            ResultSet set = Database.executeQuery(psql, this, params);
-            if(set == null) return new JSONObject();
-            String[] labels = new String[set.getMetaData().getColumnCount() + 1];
-            for (int x = 1; x < labels.length; x++) {
-                labels[x] = set.getMetaData().getColumnLabel(x);
-                try {
-                    json.put(labels[x], new JSONArray());
-                } catch (JSONException ex) {
+        return run(psql, this, params, JSON_READER);
+    }
 
-                }
-            }
-            while (set.next()) {
-                for (int x = 1; x < labels.length; x++) {
-                    try {
-                        String value = set.getString(x);
-                        ((JSONArray) json.get(labels[x])).put(value);
-                    } catch (Exception e) {
+    /**
+     * runs a select through the query cache, the result is served from the
+     * cache while it is younger than query-cache-ttl and no write through
+     * this class has touched one of its tables. When query-cache-size is 0
+     * this is the same as query()
+     *
+     * @param psql the select with ? placeholders
+     * @param params the values bound to the placeholders
+     * @see QueryCache
+     */
+    public JSONObject queryCached(String psql, String... params) {
+        if (!QueryCache.isEnabled() || isInTransaction()) {
+            return query(psql, params);
+        }
+        JSONObject result = QueryCache.get(this, psql, params);
+        if (result == null) {
+            long readAt = QueryCache.generation();
+            result = run(psql, this, params, JSON_READER);
+            QueryCache.put(this, psql, params, result, readAt);
+        }
+        return result;
+    }
+
+    /**
+     * runs the select on the jdbc executor and returns immediately, use this
+     * to overlap independent queries of a request instead of running them one
+     * after the other. The future completes exceptionally with the
+     * RuntimeException query() would have thrown
+     *
+     * @param psql the select with ? placeholders
+     * @param params the values bound to the placeholders
+     * @return a future completed with the same json query() returns
+     */
+    public CompletableFuture<JSONObject> queryAsync(final String psql, final String... params) {
+        return supplyAsync(psql, params);
+    }
+
+    /**
+     * runs an INSERT, UPDATE or DELETE on the jdbc executor and returns
+     * immediately
+     *
+     * @param psql the statement with ? placeholders
+     * @param params the values bound to the placeholders
+     * @return a future completed with an empty json object once the statement
+     * has executed
+     * @see #queryAsync(java.lang.String, java.lang.String[])
+     */
+    public CompletableFuture<JSONObject> executeAsync(final String psql, final String... params) {
+        return supplyAsync(psql, params);
+    }
 
+    /*
+     * runs the statement on the jdbc executor with the primary pin and the
+     * deadline of the calling thread, the future fails with a
+     * DatabaseBusyException when the executor queue is full
+     */
+    private CompletableFuture<JSONObject> supplyAsync(final String psql, final String[] params) {
+        final Boolean pin = pinned.get();
+        final long end = getDeadline();
+        try {
+            return CompletableFuture.supplyAsync(new Supplier<JSONObject>() {
+                @Override
+                public JSONObject get() {
+                    Boolean previousPin = pinned.get();
+                    long previousDeadline = getDeadline();
+                    pinned.set(pin);
+                    setDeadline(end);
+                    try {
+                        return run(psql, Database.this, params, JSON_READER);
+                    } finally {
+                        pinned.set(previousPin);
+                        setDeadline(previousDeadline);
                     }
                 }
-            }
-            set.close();
-            return json;
-        } catch (SQLException ex) {
-            java.util.logging.Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
-            return json;
+            }, ConnectionPool.getExecutor());
+        } catch (RejectedExecutionException ex) {
+            CompletableFuture<JSONObject> busy = new CompletableFuture<>();
+            busy.completeExceptionally(new DatabaseBusyException(name, "the jdbc executor queue is full"));
+            return busy;
         }
+    }
 
+    /**
+     * runs a select and returns the rows in a table whose numeric and boolean
+     * columns are kept in primitive arrays, use this instead of query() when
+     * the values are read as numbers. ResultTable.toJSON() gives the same
+     * shape as query() without copying the rows
+     *
+     * @param psql the select with ? placeholders
+     * @param params the values bound to the placeholders
+     * @see ResultTable
+     */
+    public ResultTable queryTable(String psql, String... params) {
+        return run(psql, this, params, TABLE_READER);
     }
 
     /**
@@ -212,20 +672,7 @@ public class Database {
      * java.lang.String[])
      */
     public static ResultSet executeQuery(String sql,Database db) {
-        Statement statement = null;
-        Connection conn = null;
-        try {
-            String debug = config.getInitParameter("debug-mode");
-            conn = ConnectionPool.getConnection(db, defaultUserName, defaultUrl, defaultPass);
-            statement = conn.createStatement();
-            statement.execute(sql);
-            if (debug != null && debug.equals("true")) {
-                System.out.println(sql);
-            }
-            return statement.getResultSet();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+        return run(sql, db, null, CACHED_READER);
     }
 
     /**
@@ -253,9 +700,11 @@ public class Database {
      * @param columnName the name of the column where a value is to be set
      * @param value
      * @param condition
+     * @see #setValue(com.quest.access.common.mysql.Database, java.lang.String,
+     * java.lang.String, java.lang.String, java.lang.String, java.lang.String)
      */
     public static void setValue(Database db, String tableName, String columnName, String value, String condition) {
-        db.execute("UPDATE " + tableName + " SET " + columnName + "='" + value + "' WHERE " + condition + "");
+        executeQuery("UPDATE " + tableName + " SET " + columnName + "=? WHERE " + condition + "", db, value);
     }
     
     
@@ -263,6 +712,27 @@ public class Database {
          setValue(this, tableName, columnName, value, condition);
     }
 
+    /**
+     * this method sets a value in a given column for the rows where the key
+     * column matches the key value, both values are passed as bind parameters
+     * so the statement is prepared once per connection. the sql query that is
+     * made is <code>UPDATE tableName SET columnName=? WHERE keyColumn=?</code>
+     *
+     * @param db the database containing the table
+     * @param tableName the name of the table we want to set a value
+     * @param columnName the name of the column where a value is to be set
+     * @param value the new value
+     * @param keyColumn the column used to select the rows to update
+     * @param keyValue the value the key column must have
+     */
+    public static void setValue(Database db, String tableName, String columnName, String value, String keyColumn, String keyValue) {
+        executeQuery("UPDATE " + tableName + " SET " + columnName + "=? WHERE " + keyColumn + "=?", db, value, keyValue);
+    }
+
+    public void setValue(String tableName, String columnName, String value, String keyColumn, String keyValue) {
+        setValue(this, tableName, columnName, value, keyColumn, keyValue);
+    }
+
     /**
      * this method executes prepared statements with strings as parameters
      *
@@ -281,34 +751,218 @@ public class Database {
      * @see #executeQuery(java.lang.String, java.lang.String)
      */
     public static ResultSet executeQuery(String psql, Database db, String... params) {
+        return run(psql, db, params, CACHED_READER);
+    }
+
+    /**
+     * this method executes a query and passes the rows to the handler one at a
+     * time instead of loading the whole result into memory, this should be
+     * used for queries that can return very many rows. The rows are read with
+     * the fetch size set by the stream-fetch-size init parameter or else by
+     * the dialect, the mysql driver streams them one at a time by default and
+     * H2 reads them in pages. The connection stays
+     * checked out until the last row has been handled, the result set and
+     * statement are closed before this method returns even if the handler
+     * throws an exception
+     *
+     * @param psql the select statement to execute, with ? placeholders for
+     * the parameters
+     * @param params the values of the placeholders, may be empty
+     * @param handler called for every row, it can return false to stop early
+     * @return the number of rows passed to the handler
+     */
+    public long stream(String psql, String[] params, RowHandler handler) {
+        Connection conn = acquire(this, psql);
         PreparedStatement pstatement = null;
+        StatementCanceller cancel = null;
         ResultSet set = null;
-        Connection conn = null;
+        long count = 0;
         try {
-            String debug = config.getInitParameter("debug-mode");
-            conn = ConnectionPool.getConnection(db, defaultUserName, defaultUrl, defaultPass);
-            pstatement = conn.prepareStatement(psql);
+            pstatement = conn.prepareStatement(psql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            pstatement.setFetchSize(streamFetchSize);
+            cancel = startDeadline(pstatement);
             for (int x = 0; x < params.length; x++) {
                 pstatement.setString(x + 1, params[x]);
             }
-            //check to see if it is a select statement
-            if (psql.toUpperCase().startsWith("SELECT")) {
-                set = pstatement.executeQuery();
+            long start = System.nanoTime();
+            set = pstatement.executeQuery();
+            QueryStats.record(this, psql, params, System.nanoTime() - start);
+            if (debug) {
+                System.out.println(pstatement);
+            }
+            while (set.next()) {
+                count++;
+                if (!handler.handleRow(set)) {
+                    break;
+                }
+            }
+            return count;
+        } catch (SQLException e) {
+            throw failure(e);
+        } finally {
+            endDeadline(pstatement, cancel);
+            close(set, pstatement, null, psql);
+            release(this, conn);
+        }
+    }
+
+    /**
+     * executes a statement on a pooled connection and hands the live result
+     * set to the reader before the connection is returned to the pool
+     *
+     * @param sql the sql statement to execute
+     * @param db the database to execute the statement on
+     * @param params the parameters of a prepared statement or null to execute
+     * the sql as a plain statement
+     * @param reader converts the result set, it is passed null for statements
+     * that return no result set
+     */
+    private static <T> T run(String sql, Database db, String[] params, ResultReader<T> reader) {
+        Connection conn = acquire(db, sql);
+        StatementCache cache = null;
+        Statement statement = null;
+        StatementCanceller cancel = null;
+        ResultSet set = null;
+        try {
+            long start;
+            if (params == null) {
+                statement = conn.createStatement();
+                cancel = startDeadline(statement);
+                start = System.nanoTime();
+                statement.execute(sql);
+                set = statement.getResultSet();
+                if (debug) {
+                    System.out.println(sql);
+                }
             } else {
-                pstatement.executeUpdate();
+                cache = ConnectionPool.getStatementCache(db, conn);
+                PreparedStatement pstatement = cache.prepare(sql);
+                statement = pstatement;
+                cancel = startDeadline(pstatement);
+                for (int x = 0; x < params.length; x++) {
+                    pstatement.setString(x + 1, params[x]);
+                }
+                start = System.nanoTime();
+                //check to see if it is a select statement
+                if (sql.toUpperCase().startsWith("SELECT")) {
+                    set = pstatement.executeQuery();
+                } else {
+                    pstatement.executeUpdate();
+                }
+                if (debug) {
+                    System.out.println(pstatement);
+                }
             }
-            if(debug != null && debug.equals("true") ){
-               System.out.println(pstatement);
+            T result = reader.read(set);
+            QueryStats.record(db, sql, params, System.nanoTime() - start);
+            if (set == null) {
+                afterWrite(db, sql);
             }
-            return set;
+            return result;
+        } catch (SQLException e) {
+            throw failure(e);
+        } finally {
+            endDeadline(statement, cancel);
+            close(set, statement, cache, sql);
+            release(db, conn);
+        }
+    }
 
-        } catch (Exception e) {
-             throw new RuntimeException(e);
+    /*
+     * closes the result set and the statement, prepared statements are handed
+     * back to the statement cache of their connection instead of being closed
+     */
+    private static void close(ResultSet set, Statement statement, StatementCache cache, String sql) {
+        try {
+            if (set != null) {
+                set.close();
+            }
+        } catch (SQLException e) {
+            java.util.logging.Logger.getLogger(Database.class.getName()).log(Level.FINE, null, e);
+        }
+        try {
+            if (statement != null && cache != null) {
+                cache.release(sql, (PreparedStatement) statement);
+            } else if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            java.util.logging.Logger.getLogger(Database.class.getName()).log(Level.FINE, null, e);
         }
     }
 
+    /*
+     * reads a result set while its connection is still checked out
+     */
+    private interface ResultReader<T> {
+
+        T read(ResultSet set) throws SQLException;
+    }
+
+    /*
+     * converts a result set into the column oriented json returned by query()
+     */
+    private static final ResultReader<JSONObject> JSON_READER = new ResultReader<JSONObject>() {
+        @Override
+        public JSONObject read(ResultSet set) throws SQLException {
+            JSONObject json = new JSONObject();
+            if (set == null) {
+                return json;
+            }
+            ResultSetMetaData meta = set.getMetaData();
+            JSONArray[] columns = new JSONArray[meta.getColumnCount() + 1];
+            for (int x = 1; x < columns.length; x++) {
+                columns[x] = new JSONArray();
+                try {
+                    json.put(meta.getColumnLabel(x), columns[x]);
+                } catch (JSONException ex) {
+
+                }
+            }
+            while (set.next()) {
+                for (int x = 1; x < columns.length; x++) {
+                    columns[x].put(set.getString(x));
+                }
+            }
+            return json;
+        }
+    };
+
+    /*
+     * reads a result set into primitive typed columns for queryTable()
+     */
+    private static final ResultReader<ResultTable> TABLE_READER = new ResultReader<ResultTable>() {
+        @Override
+        public ResultTable read(ResultSet set) throws SQLException {
+            return ResultTable.read(set);
+        }
+    };
+
+    /*
+     * copies a result set into a disconnected row set so that the result set
+     * returned by executeQuery() stays readable after its connection has been
+     * returned to the pool
+     */
+    private static final ResultReader<ResultSet> CACHED_READER = new ResultReader<ResultSet>() {
+        @Override
+        public ResultSet read(ResultSet set) throws SQLException {
+            if (set == null) {
+                return null;
+            }
+            CachedRowSet cached = rowSetFactory().createCachedRowSet();
+            cached.populate(set);
+            return cached;
+        }
+    };
 
+    private static RowSetFactory rowSetFactory;
 
+    private static synchronized RowSetFactory rowSetFactory() throws SQLException {
+        if (rowSetFactory == null) {
+            rowSetFactory = RowSetProvider.newFactory();
+        }
+        return rowSetFactory;
+    }
 
    
     /**
@@ -323,7 +977,7 @@ public class Database {
      *
      */
     public static boolean ifValueExists(String value, String tableName, String columnName,Database db) {
-        JSONObject data = db.query("SELECT " + columnName + " FROM " + tableName + " WHERE " + columnName + "='" + value + "' ");
+        JSONObject data = db.query("SELECT " + columnName + " FROM " + tableName + " WHERE " + columnName + "=?", value);
         return data.optJSONArray(columnName).length() > 0;
     }
     
@@ -390,8 +1044,8 @@ public class Database {
      * condition or an empty string if no value is found
      */
     public static String getValue(String toFind, String table, String key, String keyValue, Database db) {
-        String sql = "SELECT " + toFind + " FROM " + table + " WHERE " + key + "='" + keyValue + "'";
-        return db.query(sql).optJSONArray(toFind).optString(0);
+        String psql = "SELECT " + toFind + " FROM " + table + " WHERE " + key + "=?";
+        return db.queryCached(psql, keyValue).optJSONArray(toFind).optString(0);
     }
 
 
@@ -409,6 +1063,9 @@ public class Database {
      * @param conditions the conditions to be added after the where clause e.g.
      * user='root', age=20 etc
      * @return a result set containing the requested data
+     * @see #doSelect(com.quest.access.common.mysql.Database,
+     * java.lang.String[], java.lang.String[], java.lang.String[],
+     * java.lang.String[])
      */
     public static ResultSet doSelect(Database db, String[] columnNames, String[] tableNames, String[] conditions) {
         //Select col1,col2 from table1 where 
@@ -443,6 +1100,51 @@ public class Database {
         return doSelect(this, columnNames, tableNames, conditions);
     }
 
+    /**
+     * this method selects data where every key column equals the matching key
+     * value, the key values are passed as bind parameters. the query is in
+     * this form SELECT columnNames FROM tableNames WHERE key1=? AND key2=?
+     *
+     * @param db the database to select data from
+     * @param columnNames the columns to be selected
+     * @param tableNames the names of the tables to select data from
+     * @param keyColumns the columns compared in the where clause
+     * @param keyValues the values the key columns must have
+     * @return a result set containing the requested data
+     */
+    public static ResultSet doSelect(Database db, String[] columnNames, String[] tableNames, String[] keyColumns, String[] keyValues) {
+        StringBuilder builder = new StringBuilder("SELECT ");
+        join(builder, columnNames, ", ", "");
+        builder.append(" FROM ");
+        join(builder, tableNames, ", ", "");
+        if (keyColumns.length > 0) {
+            builder.append(" WHERE ");
+            join(builder, keyColumns, " AND ", "=?");
+        }
+        return executeQuery(builder.toString(), db, keyValues);
+    }
+
+    /**
+     * @see Database#doSelect(com.quest.access.common.mysql.Database,
+     * java.lang.String[], java.lang.String[], java.lang.String[],
+     * java.lang.String[])
+     */
+    public ResultSet doSelect(String[] columnNames, String[] tableNames, String[] keyColumns, String[] keyValues) {
+        return doSelect(this, columnNames, tableNames, keyColumns, keyValues);
+    }
+
+    /*
+     * appends the names separated by the separator, each followed by the suffix
+     */
+    private static void join(StringBuilder builder, String[] names, String separator, String suffix) {
+        for (int x = 0; x < names.length; x++) {
+            if (x > 0) {
+                builder.append(separator);
+            }
+            builder.append(names[x]).append(suffix);
+        }
+    }
+
     /**
      * this method is used to insert data into the database the query executed
      * is INSERT INTO table (values), it uses the ! mark as an escape character
@@ -453,8 +1155,15 @@ public class Database {
      * @param values the values to insert into the database
      */
     public static void doInsert(Database db, String table, String[] values) {
+        executeQuery(insertSql(table, values), db, insertParams(values));
+    }
+
+    /*
+     * builds INSERT INTO table VALUES( ? , ? ) with the ! escaped values
+     * written into the sql as they are
+     */
+    private static String insertSql(String table, String[] values) {
         StringBuilder builder = new StringBuilder("INSERT INTO ").append(table).append(" ").append("VALUES");
-        ArrayList<String> ps = new ArrayList();
         builder.append("(");
         for (int x = 0; x < values.length - 1; x++) {
             if (values[x].startsWith("!")) {
@@ -462,22 +1171,28 @@ public class Database {
 
             } else {
                 builder.append(" ? ").append(" ,");
-                ps.add(values[x]);
             }
         }
         if (values[values.length - 1].startsWith("!")) {
             builder.append(values[values.length - 1].substring(1)).append(" )");
         } else {
             builder.append(" ? ").append(")");
-            ps.add(values[values.length - 1]);
-        }
-        String sql = builder.toString();
-        String[] vals = new String[ps.size()];
-        for (int x = 0; x < ps.size(); x++) {
-            vals[x] = ps.get(x);
         }
-        executeQuery(sql, db, vals);
+        return builder.toString();
+    }
 
+    /*
+     * returns the values that are not ! escaped, these are bound to the ?
+     * placeholders of the sql built by insertSql()
+     */
+    private static String[] insertParams(String[] values) {
+        ArrayList<String> ps = new ArrayList<>();
+        for (String value : values) {
+            if (!value.startsWith("!")) {
+                ps.add(value);
+            }
+        }
+        return ps.toArray(new String[ps.size()]);
     }
 
     /**
@@ -488,6 +1203,157 @@ public class Database {
         doInsert(this, table, values);
     }
 
+    /**
+     * this method inserts many rows into a table in a single jdbc batch, the
+     * rows are written with the same ! escaping as doInsert() and every row
+     * must escape the same positions as the first row, e.g. all rows pass
+     * "!NOW()" as their third value. When the jdbc-parameters init parameter
+     * contains rewriteBatchedStatements=true the mysql driver sends the rows as
+     * one multi row INSERT
+     *
+     * @param db the database to insert into
+     * @param table the name of the table the rows are inserted into
+     * @param rows the values of each row
+     * @see #doInsert(com.quest.access.common.mysql.Database, java.lang.String,
+     * java.lang.String[])
+     */
+    public static void doInsertBatch(Database db, String table, List<String[]> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        String sql = insertSql(table, rows.get(0));
+        ArrayList<String[]> params = new ArrayList<>();
+        for (String[] row : rows) {
+            if (!insertSql(table, row).equals(sql)) {
+                throw new IllegalArgumentException("All rows of a batch insert into " + table + " must escape the same values");
+            }
+            params.add(insertParams(row));
+        }
+        executeBatch(sql, db, params);
+    }
+
+    /**
+     * @see Database#doInsertBatch(com.quest.access.common.mysql.Database,
+     * java.lang.String, java.util.List)
+     */
+    public void doInsertBatch(String table, List<String[]> rows) {
+        doInsertBatch(this, table, rows);
+    }
+
+    /**
+     * this method writes many keys and their values into a key/value table,
+     * keys that exist have their value replaced and the others are inserted.
+     * All the entries are written in one jdbc batch of the dialect's upsert
+     * statement, INSERT ... ON DUPLICATE KEY UPDATE on mysql, which needs a
+     * unique index on the key column, and MERGE on the embedded database
+     *
+     * @param db the database containing the table
+     * @param table the key/value table
+     * @param keyColumn the column holding the keys
+     * @param valueColumn the column holding the values
+     * @param entries the values keyed by their keys
+     * @see Dialect#upsert(java.lang.String, java.lang.String, java.lang.String)
+     */
+    public static void upsertAll(Database db, String table, String keyColumn, String valueColumn, Map<String, String> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        ArrayList<String[]> rows = new ArrayList<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            rows.add(new String[]{entry.getKey(), entry.getValue()});
+        }
+        executeBatch(Dialect.getDialect().upsert(table, keyColumn, valueColumn), db, rows);
+    }
+
+    /**
+     * @see Database#upsertAll(com.quest.access.common.mysql.Database,
+     * java.lang.String, java.lang.String, java.lang.String, java.util.Map)
+     */
+    public void upsertAll(String table, String keyColumn, String valueColumn, Map<String, String> entries) {
+        upsertAll(this, table, keyColumn, valueColumn, entries);
+    }
+
+    /**
+     * this method executes a prepared INSERT, UPDATE or DELETE statement once
+     * for every set of parameters in a single jdbc batch. The batch runs on
+     * one connection inside one transaction, so either all the rows are
+     * written or none of them is and mysql only commits once
+     *
+     * @param psql the statement to execute with ? placeholders
+     * @param db the database to execute the statement on
+     * @param rows the parameters of each execution, each array replaces the
+     * placeholders in order
+     * @return the update counts of each execution as returned by the driver
+     */
+    public static int[] executeBatch(String psql, Database db, List<String[]> rows) {
+        if (rows.isEmpty()) {
+            return new int[0];
+        }
+        Connection conn = acquire(db, psql);
+        StatementCache cache = ConnectionPool.getStatementCache(db, conn);
+        PreparedStatement pstatement = null;
+        StatementCanceller cancel = null;
+        // inside inTransaction() the batch is committed with the transaction
+        boolean bound = db.isInTransaction();
+        boolean autoCommit = true;
+        try {
+            autoCommit = conn.getAutoCommit();
+            pstatement = cache.prepare(psql);
+            for (String[] row : rows) {
+                for (int x = 0; x < row.length; x++) {
+                    pstatement.setString(x + 1, row[x]);
+                }
+                pstatement.addBatch();
+            }
+            if (!bound) {
+                conn.setAutoCommit(false);
+            }
+            cancel = startDeadline(pstatement);
+            long start = System.nanoTime();
+            int[] counts = pstatement.executeBatch();
+            if (!bound) {
+                conn.commit();
+            }
+            QueryStats.record(db, psql, null, System.nanoTime() - start);
+            afterWrite(db, psql);
+            if (debug) {
+                System.out.println(psql + " [batch of " + rows.size() + "]");
+            }
+            return counts;
+        } catch (SQLException e) {
+            try {
+                if (!bound) {
+                    conn.rollback();
+                }
+            } catch (SQLException ex) {
+                java.util.logging.Logger.getLogger(Database.class.getName()).log(Level.FINE, null, ex);
+            }
+            throw failure(e);
+        } finally {
+            endDeadline(pstatement, cancel);
+            try {
+                if (pstatement != null) {
+                    pstatement.clearBatch();
+                }
+                if (!bound) {
+                    conn.setAutoCommit(autoCommit);
+                }
+            } catch (SQLException e) {
+                java.util.logging.Logger.getLogger(Database.class.getName()).log(Level.FINE, null, e);
+            }
+            close(null, pstatement, cache, psql);
+            release(db, conn);
+        }
+    }
+
+    /**
+     * @see Database#executeBatch(java.lang.String,
+     * com.quest.access.common.mysql.Database, java.util.List)
+     */
+    public int[] executeBatch(String psql, List<String[]> rows) {
+        return executeBatch(psql, this, rows);
+    }
+
     /**
      * this method is used to carry out a database update on the specified
      * database the various components of the update statements are split into
@@ -499,6 +1365,9 @@ public class Database {
      * conditions are true
      * @param conditions the conditions to be met in order for the data to be
      * updated
+     * @see #doUpdate(com.quest.access.common.mysql.Database,
+     * java.lang.String, java.lang.String[], java.lang.String[],
+     * java.lang.String[], java.lang.String[])
      */
     public static void doUpdate(Database db, String[] tableNames, String[] values, String[] conditions) {
         StringBuilder builder = new StringBuilder("UPDATE");
@@ -534,6 +1403,41 @@ public class Database {
         doUpdate(this, tableNames, values, conditions);
     }
 
+    /**
+     * this method updates the given columns of the rows where every key column
+     * equals the matching key value, all values are passed as bind parameters.
+     * the statement executed is UPDATE table SET col1=?, col2=? WHERE key1=?
+     * AND key2=?
+     *
+     * @param db the database to update
+     * @param table the table to update
+     * @param columns the columns to set
+     * @param values the new values of the columns
+     * @param keyColumns the columns compared in the where clause
+     * @param keyValues the values the key columns must have
+     */
+    public static void doUpdate(Database db, String table, String[] columns, String[] values, String[] keyColumns, String[] keyValues) {
+        StringBuilder builder = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        join(builder, columns, ", ", "=?");
+        if (keyColumns.length > 0) {
+            builder.append(" WHERE ");
+            join(builder, keyColumns, " AND ", "=?");
+        }
+        String[] params = new String[values.length + keyValues.length];
+        System.arraycopy(values, 0, params, 0, values.length);
+        System.arraycopy(keyValues, 0, params, values.length, keyValues.length);
+        executeQuery(builder.toString(), db, params);
+    }
+
+    /**
+     * @see Database#doUpdate(com.quest.access.common.mysql.Database,
+     * java.lang.String, java.lang.String[], java.lang.String[],
+     * java.lang.String[], java.lang.String[])
+     */
+    public void doUpdate(String table, String[] columns, String[] values, String[] keyColumns, String[] keyValues) {
+        doUpdate(this, table, columns, values, keyColumns, keyValues);
+    }
+
     //SELECT STUDENT_NAME FROM STUDENT_DATA WHERE STUDENT_NAME = ? AND STUDENT_CLASS = ?
     //db.query().select(class_id,book_id).where(name=20 and age=30).execute();
     //db.query().insert()
@@ -545,7 +1449,7 @@ public class Database {
     public class QueryBuilder {
 
         private String[] options;
-        private String[] sqlStart = new String[]{
+        private final String[] sqlStart = new String[]{
             "SELECT ",
             "INSERT INTO ",
             "UPDATE ",
@@ -732,6 +1636,20 @@ public class Database {
             return Database.this.query(sql);
         }
 
+        /**
+         * generates the query once and returns it as an immutable compiled
+         * query that can be kept in a static field and executed many times,
+         * the values are passed as ? placeholders e.g. set("CONF_VALUE=?")
+         * instead of being written into the clauses
+         *
+         * @return the compiled query, executed on this builder's database
+         * unless another one is passed to execute()
+         * @see CompiledQuery
+         */
+        public CompiledQuery compile() {
+            return new CompiledQuery(Database.this, generateQuery());
+        }
+
         private String generateQuery() {
             StringBuilder sql = new StringBuilder();
             for (int x = 0; x < options.length; x++) {
@@ -764,4 +1682,63 @@ public class Database {
 
     }
 
+    /*
+     * cancels a statement when the deadline it was started with passes, unless
+     * the statement finished first
+     */
+    private static class StatementCanceller implements Runnable {
+
+        private final Statement statement;
+
+        private ScheduledFuture<?> future;
+
+        private boolean finished;
+
+        StatementCanceller(Statement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (finished) {
+                return;
+            }
+            try {
+                statement.cancel();
+            } catch (SQLException ex) {
+                java.util.logging.Logger.getLogger(Database.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+
+        /*
+         * waits for a running cancel so the statement is not cancelled after
+         * it has been handed to another request
+         */
+        synchronized void finish() {
+            finished = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /*
+     * the connection bound to a thread by inTransaction() and the writes to
+     * report to the query cache once they are committed
+     */
+    private static class BoundTransaction {
+
+        private final String dbName;
+
+        private final Connection conn;
+
+        private final ArrayList<String> writes = new ArrayList<>();
+
+        private boolean rollbackOnly;
+
+        BoundTransaction(String dbName, Connection conn) {
+            this.dbName = dbName;
+            this.conn = conn;
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package com.quest.access.common.mysql;
+
+/*
+ * This file defines an exception
+ * a database busy exception is thrown when a connection to a database can not
+ * be checked out because too many threads are already waiting for one or the
+ * wait timed out. The request can be retried later
+ */
+/**
+ *
+ * @author connie
+ */
+public class DatabaseBusyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * the error code sent to clients for a request rejected with this
+     * exception
+     */
+    public static final String ERROR_CODE = "db_busy";
+
+    private final String dbName;
+
+    public DatabaseBusyException(String dbName, String reason) {
+        super("Database " + dbName + " is busy, " + reason);
+        this.dbName = dbName;
+    }
+
+    /**
+     * @return the name of the database that rejected the request
+     */
+    public String getDatabaseName() {
+        return dbName;
+    }
+
+    /**
+     * returns the database busy exception in the causes of the given
+     * throwable, services often wrap it
+     *
+     * @param ex the throwable
+     * @return the exception or null if it was not caused by one
+     */
+    public static DatabaseBusyException find(Throwable ex) {
+        for (int x = 0; ex != null && x < 10; x++) {
+            if (ex instanceof DatabaseBusyException) {
+                return (DatabaseBusyException) ex;
+            }
+            ex = ex.getCause();
+        }
+        return null;
+    }
+}
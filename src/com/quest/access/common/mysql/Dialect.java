@@ -0,0 +1,169 @@
+package com.quest.access.common.mysql;
+
+import java.util.List;
+import javax.servlet.ServletConfig;
+import org.json.JSONObject;
+
+/**
+ * This file hides the sql and jdbc details that differ between the database
+ * servers Database can run on. The dialect is chosen from the
+ * production-status init parameter, online and offline use mysql while
+ * embedded runs every database in an embedded H2 database in mysql mode so the
+ * whole service stack can run on one machine without a mysql server.
+ * <p>
+ * The embedded dialect reads the following servlet init parameters
+ * <ol>
+ * <li>embedded-jdbc - the jdbc url the database name is appended to, default
+ * jdbc:h2:mem: which keeps every database in memory, use e.g.
+ * jdbc:h2:file:/var/quest/ to keep them on disk</li>
+ * <li>embedded-database-username - default sa</li>
+ * <li>embedded-database-password - default empty</li>
+ * </ol>
+ * The H2 driver jar must be on the classpath when embedded is used
+ * </p>
+ *
+ * @author connie
+ */
+public abstract class Dialect {
+
+    private static volatile Dialect current = new MySqlDialect();
+
+    /**
+     * chooses the dialect for the production-status init parameter
+     *
+     * @param config the servlet config
+     */
+    public static void configure(ServletConfig config) {
+        current = forStatus(config.getInitParameter("production-status"));
+    }
+
+    /**
+     * @param status the value of production-status
+     * @return the H2 dialect for embedded and the mysql dialect otherwise
+     */
+    public static Dialect forStatus(String status) {
+        return "embedded".equals(status) ? new H2Dialect() : new MySqlDialect();
+    }
+
+    /**
+     * @return the dialect chosen by configure(), mysql by default
+     */
+    public static Dialect getDialect() {
+        return current;
+    }
+
+    /**
+     * @return the name of the dialect e.g. mysql
+     */
+    public abstract String getName();
+
+    /**
+     * @return the class name of the jdbc driver
+     */
+    public abstract String getDriverClass();
+
+    /**
+     * @return the driver properties used when jdbc-parameters is not set
+     */
+    public abstract String getDefaultJdbcParameters();
+
+    /**
+     * @return the jdbc url used when the url init parameter of the current
+     * production-status is not set
+     */
+    public String getDefaultUrl() {
+        return null;
+    }
+
+    /**
+     * builds the jdbc url of a database
+     *
+     * @param url the jdbc url from the init parameters
+     * @param dbName the name of the database
+     * @param params the driver properties, may be empty
+     */
+    public abstract String getUrl(String url, String dbName, String params);
+
+    /**
+     * @param dbName the name of the database
+     * @return the statement that creates the database or null if databases
+     * are created when they are first connected to
+     */
+    public abstract String createDatabase(String dbName);
+
+    /**
+     * returns the columns of a table in the shape of mysql's SHOW COLUMNS
+     * i.e. a json object with at least the arrays Field and Type, in the order
+     * of the columns in the table
+     */
+    public abstract JSONObject describeColumns(Database db, String table);
+
+    /**
+     * returns the indexes of a table in the shape of mysql's SHOW INDEX i.e.
+     * a json object with the arrays Key_name, Column_name, Sub_part and
+     * Non_unique, one entry per indexed column in the order of the columns in
+     * the index
+     */
+    public abstract JSONObject describeIndexes(Database db, String table);
+
+    /**
+     * @param current the type of a column as returned by describeColumns()
+     * in upper case
+     * @param expected the type of the column in the model in upper case
+     * @return true if the column does not need to be modified, a dialect
+     * that can not compare types returns true and leaves columns as they are
+     */
+    public abstract boolean isSameColumnType(String current, String expected);
+
+    /**
+     * @return true if a connection can switch between the databases of a
+     * server with Connection.setCatalog()
+     */
+    public abstract boolean supportsCatalogs();
+
+    /**
+     * returns the fetch size Database.stream() sets on its statements so the
+     * driver does not load the whole result into memory
+     *
+     * @param jdbc the jdbc url followed by the driver properties
+     */
+    public abstract int getStreamFetchSize(String jdbc);
+
+    /**
+     * @return true if an index may use a prefix of a column e.g. NAME(191)
+     */
+    public abstract boolean supportsIndexPrefixes();
+
+    /**
+     * @return true if a table can be altered without copying it e.g. mysql's
+     * ALGORITHM=INPLACE, the inplace argument of alterTable() is only true
+     * when this is
+     */
+    public boolean supportsInplaceAlter() {
+        return false;
+    }
+
+    /**
+     * turns the changes to a table into the statements that apply them
+     *
+     * @param table the table
+     * @param changes the changes as written after ALTER TABLE in mysql e.g.
+     * ADD NAME TEXT AFTER ID or ADD INDEX IDX_NAME (NAME)
+     * @param inplace true to ask for the change to be made without copying
+     * the table, the statement is retried with false if this fails
+     */
+    public abstract String[] alterTable(String table, List<String> changes, boolean inplace);
+
+    /**
+     * returns the statement that inserts one key and value into a key/value
+     * table or replaces the value when the key exists, the statement takes
+     * the key and the value as its two parameters
+     *
+     * @param table the table
+     * @param keyColumn the column holding the keys, it must be unique for
+     * dialects that rely on a unique index
+     * @param valueColumn the column holding the values
+     */
+    public abstract String upsert(String table, String keyColumn, String valueColumn);
+
+}
@@ -0,0 +1,214 @@
+package com.quest.access.common.mysql;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * This file implements the dialect of an embedded H2 database running in mysql
+ * mode, used when production-status is embedded. Every database name is a
+ * separate H2 database which is created the first time it is connected to.
+ * H2 has no SHOW COLUMNS or SHOW INDEX with the column labels mysql uses so
+ * tables are described from the jdbc metadata instead.
+ * <p>
+ * Index names are unique per schema in H2 and per table in mysql, so an index
+ * IDX_NAME of table USERS is created as IDX_USERS_NAME and reported back as
+ * IDX_NAME by describeIndexes(). The types of existing columns are not
+ * reconciled, a model that changes the type of a column needs the embedded
+ * database to be recreated
+ * </p>
+ *
+ * @author connie
+ */
+public class H2Dialect extends Dialect {
+
+    @Override
+    public String getName() {
+        return "h2";
+    }
+
+    @Override
+    public String getDriverClass() {
+        return "org.h2.Driver";
+    }
+
+    @Override
+    public String getDefaultJdbcParameters() {
+        return "";
+    }
+
+    @Override
+    public String getDefaultUrl() {
+        return "jdbc:h2:mem:";
+    }
+
+    @Override
+    public String getUrl(String url, String dbName, String params) {
+        //keep an in memory database alive while the server runs, not only while a connection is open
+        return url + dbName + ";MODE=MySQL;DB_CLOSE_DELAY=-1" + (params.isEmpty() ? "" : ";" + params);
+    }
+
+    @Override
+    public String createDatabase(String dbName) {
+        return null;
+    }
+
+    @Override
+    public JSONObject describeColumns(Database db, String table) {
+        JSONArray fields = new JSONArray();
+        JSONArray types = new JSONArray();
+        Connection conn = db.getConnection();
+        ResultSet set = null;
+        try {
+            set = conn.getMetaData().getColumns(null, null, table.toUpperCase(), null);
+            while (set.next()) {
+                fields.put(set.getString("COLUMN_NAME"));
+                types.put(set.getString("TYPE_NAME"));
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(set);
+            db.releaseConnection(conn);
+        }
+        JSONObject columns = new JSONObject();
+        try {
+            columns.put("Field", fields);
+            columns.put("Type", types);
+        } catch (JSONException ex) {
+
+        }
+        return columns;
+    }
+
+    @Override
+    public JSONObject describeIndexes(Database db, String table) {
+        JSONArray names = new JSONArray();
+        JSONArray columnNames = new JSONArray();
+        JSONArray subParts = new JSONArray();
+        JSONArray nonUnique = new JSONArray();
+        Connection conn = db.getConnection();
+        ResultSet set = null;
+        try {
+            DatabaseMetaData meta = conn.getMetaData();
+            set = meta.getIndexInfo(null, null, table.toUpperCase(), false, false);
+            while (set.next()) {
+                if (set.getString("COLUMN_NAME") == null) {
+                    continue; //table statistics
+                }
+                names.put(modelName(table, set.getString("INDEX_NAME")));
+                columnNames.put(set.getString("COLUMN_NAME"));
+                subParts.put("null");
+                nonUnique.put(set.getBoolean("NON_UNIQUE") ? "1" : "0");
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(set);
+            db.releaseConnection(conn);
+        }
+        JSONObject indexes = new JSONObject();
+        try {
+            indexes.put("Key_name", names);
+            indexes.put("Column_name", columnNames);
+            indexes.put("Sub_part", subParts);
+            indexes.put("Non_unique", nonUnique);
+        } catch (JSONException ex) {
+
+        }
+        return indexes;
+    }
+
+    @Override
+    public boolean isSameColumnType(String current, String expected) {
+        //H2 reports its own names for mysql types e.g. CLOB for TEXT and no
+        //lengths, so the types of existing columns are left as they were created
+        return true;
+    }
+
+    @Override
+    public boolean supportsCatalogs() {
+        //every database name is a separate embedded database
+        return false;
+    }
+
+    @Override
+    public int getStreamFetchSize(String jdbc) {
+        //H2 rejects a negative fetch size, it reads a large result in pages of this many rows
+        return 500;
+    }
+
+    @Override
+    public boolean supportsIndexPrefixes() {
+        return false;
+    }
+
+    @Override
+    public String[] alterTable(String table, List<String> changes, boolean inplace) {
+        //H2 alters one thing per statement and creates indexes with CREATE INDEX
+        ArrayList<String> statements = new ArrayList<>();
+        for (String change : changes) {
+            if (change.startsWith("ADD INDEX ")) {
+                statements.add(createIndex("INDEX", change.substring(10), table));
+            } else if (change.startsWith("ADD UNIQUE INDEX ")) {
+                statements.add(createIndex("UNIQUE INDEX", change.substring(17), table));
+            } else if (change.startsWith("DROP INDEX ")) {
+                statements.add("DROP INDEX IF EXISTS " + physicalName(table, change.substring(11).trim()));
+            } else {
+                statements.add("ALTER TABLE " + table + " " + change);
+            }
+        }
+        return statements.toArray(new String[statements.size()]);
+    }
+
+    @Override
+    public String upsert(String table, String keyColumn, String valueColumn) {
+        return "MERGE INTO " + table + " (" + keyColumn + ", " + valueColumn + ") KEY (" + keyColumn + ") VALUES (?, ?)";
+    }
+
+    /*
+     * definition is the name followed by the columns e.g. IDX_NAME (NAME)
+     */
+    private static String createIndex(String kind, String definition, String table) {
+        int columns = definition.indexOf(' ');
+        String name = physicalName(table, definition.substring(0, columns));
+        return "CREATE " + kind + " " + name + " ON " + table + definition.substring(columns);
+    }
+
+    /*
+     * the name an index of the model is created with, IDX_NAME of USERS is
+     * IDX_USERS_NAME
+     */
+    private static String physicalName(String table, String name) {
+        if (!name.toUpperCase().startsWith("IDX_")) {
+            return name;
+        }
+        return "IDX_" + table.toUpperCase() + "_" + name.substring(4);
+    }
+
+    /*
+     * the name of an index as the model knows it, the reverse of physicalName()
+     */
+    private static String modelName(String table, String name) {
+        String prefix = "IDX_" + table.toUpperCase() + "_";
+        return name.toUpperCase().startsWith(prefix) ? "IDX_" + name.substring(prefix.length()) : name;
+    }
+
+    private static void close(ResultSet set) {
+        try {
+            if (set != null) {
+                set.close();
+            }
+        } catch (SQLException ex) {
+            java.util.logging.Logger.getLogger(H2Dialect.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+}
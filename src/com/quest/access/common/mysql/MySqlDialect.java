@@ -0,0 +1,89 @@
+package com.quest.access.common.mysql;
+
+import java.util.List;
+import org.json.JSONObject;
+
+/**
+ * This file implements the dialect of a mysql server, used when
+ * production-status is online or offline
+ *
+ * @author connie
+ */
+public class MySqlDialect extends Dialect {
+
+    @Override
+    public String getName() {
+        return "mysql";
+    }
+
+    @Override
+    public String getDriverClass() {
+        return "com.mysql.jdbc.Driver";
+    }
+
+    @Override
+    public String getDefaultJdbcParameters() {
+        return "rewriteBatchedStatements=true";
+    }
+
+    @Override
+    public String getUrl(String url, String dbName, String params) {
+        return url + dbName + (params.isEmpty() ? "" : "?" + params);
+    }
+
+    @Override
+    public String createDatabase(String dbName) {
+        return "CREATE DATABASE IF NOT EXISTS " + dbName;
+    }
+
+    @Override
+    public JSONObject describeColumns(Database db, String table) {
+        return db.query("SHOW COLUMNS FROM " + table);
+    }
+
+    @Override
+    public JSONObject describeIndexes(Database db, String table) {
+        return db.query("SHOW INDEX FROM " + table);
+    }
+
+    @Override
+    public boolean isSameColumnType(String current, String expected) {
+        //mysql reports INT as INT(11) so a type that contains the expected one is the same
+        return current.equals(expected) || current.contains(expected);
+    }
+
+    @Override
+    public boolean supportsCatalogs() {
+        return true;
+    }
+
+    @Override
+    public int getStreamFetchSize(String jdbc) {
+        //Integer.MIN_VALUE streams rows one at a time, with useCursorFetch=true a server side cursor reads them in pages
+        return jdbc.contains("useCursorFetch=true") ? 500 : Integer.MIN_VALUE;
+    }
+
+    @Override
+    public boolean supportsIndexPrefixes() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsInplaceAlter() {
+        return true;
+    }
+
+    @Override
+    public String[] alterTable(String table, List<String> changes, boolean inplace) {
+        String sql = "ALTER TABLE " + table + " " + String.join(", ", changes);
+        return new String[]{inplace ? sql + ", ALGORITHM=INPLACE" : sql};
+    }
+
+    @Override
+    public String upsert(String table, String keyColumn, String valueColumn) {
+        //with rewriteBatchedStatements=true a batch of these is sent as one multi row statement
+        return "INSERT INTO " + table + " (" + keyColumn + ", " + valueColumn + ") VALUES (?, ?)"
+                + " ON DUPLICATE KEY UPDATE " + valueColumn + "=VALUES(" + valueColumn + ")";
+    }
+
+}
@@ -0,0 +1,288 @@
+package com.quest.access.common.mysql;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.ServletConfig;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * This file implements an opt-in cache of select results used by
+ * Database.queryCached(). Results are keyed by database, sql and parameters,
+ * live for a fixed time and the least recently used result is dropped when
+ * the cache is full. Every write executed through Database removes the cached
+ * results that read from the table it wrote to, writes made outside this
+ * server are only seen once the cached result expires.
+ * <p>
+ * The cache is configured with the following servlet init parameters
+ * <ol>
+ * <li>query-cache-size - the maximum number of cached results, default 0
+ * which disables the cache</li>
+ * <li>query-cache-ttl - milliseconds a result is cached for, default
+ * 60000</li>
+ * </ol>
+ * </p>
+ *
+ * @author connie
+ */
+public class QueryCache {
+
+    /*
+     * the tables named after FROM and JOIN in a select
+     */
+    private static final Pattern READ_TABLES = Pattern.compile(
+            "\\b(?:FROM|JOIN)\\s+([\\w.`]+(?:\\s*(?:AS\\s+)?\\w+)?(?:\\s*,\\s*[\\w.`]+(?:\\s*(?:AS\\s+)?\\w+)?)*)",
+            Pattern.CASE_INSENSITIVE);
+
+    /*
+     * the table changed by an INSERT, REPLACE, MERGE, UPDATE, DELETE or a
+     * schema change
+     */
+    private static final Pattern WRITE_TABLE = Pattern.compile(
+            "^\\s*(?:INSERT\\s+(?:IGNORE\\s+)?INTO|REPLACE\\s+INTO|MERGE\\s+INTO|UPDATE|DELETE\\s+FROM|ALTER\\s+TABLE|DROP\\s+TABLE(?:\\s+IF\\s+EXISTS)?|TRUNCATE(?:\\s+TABLE)?|CREATE\\s+TABLE(?:\\s+IF\\s+NOT\\s+EXISTS)?)\\s+([\\w.`]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private static int maxSize = 0;
+
+    private static long ttl = 60000;
+
+    private static final LinkedHashMap<String, CachedResult> entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static final AtomicLong hits = new AtomicLong();
+
+    private static final AtomicLong misses = new AtomicLong();
+
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private static final AtomicLong invalidations = new AtomicLong();
+
+    private static final AtomicLong expirations = new AtomicLong();
+
+    /*
+     * increases on every invalidation so that a result read before a write
+     * is not cached after it
+     */
+    private static final AtomicLong generation = new AtomicLong();
+
+    private QueryCache() {
+    }
+
+    /**
+     * reads the query-cache-* init parameters
+     *
+     * @param config the servlet config
+     */
+    public static void configure(ServletConfig config) {
+        String size = config.getInitParameter("query-cache-size");
+        String time = config.getInitParameter("query-cache-ttl");
+        synchronized (entries) {
+            if (size != null && !size.trim().isEmpty()) {
+                maxSize = Math.max(0, Integer.parseInt(size.trim()));
+            }
+            if (time != null && !time.trim().isEmpty()) {
+                ttl = Long.parseLong(time.trim());
+            }
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return true if query-cache-size is greater than 0
+     */
+    public static boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * returns a copy of the cached result or null if the result is not cached
+     * or has expired
+     */
+    static JSONObject get(Database db, String sql, String[] params) {
+        String key = key(db, sql, params);
+        CachedResult entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                entries.remove(key);
+                expirations.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copy(entry.result);
+    }
+
+    /**
+     * @return the value to pass to put() for a result that is about to be
+     * read from the database
+     */
+    static long generation() {
+        return generation.get();
+    }
+
+    /**
+     * caches a result unless a table was invalidated since the result was
+     * read, selects whose tables can not be worked out from the sql are not
+     * cached since no write would ever invalidate them
+     *
+     * @param readAt the value of generation() before the result was read
+     */
+    static void put(Database db, String sql, String[] params, JSONObject result, long readAt) {
+        Set<String> tables = readTables(db, sql);
+        if (tables.isEmpty()) {
+            return;
+        }
+        CachedResult entry = new CachedResult(copy(result), tables, System.currentTimeMillis() + ttl);
+        synchronized (entries) {
+            if (generation.get() == readAt) {
+                entries.put(key(db, sql, params), entry);
+            }
+        }
+    }
+
+    /**
+     * removes the cached results that read from the table written to by the
+     * given sql, statements that are not writes are ignored
+     *
+     * @param db the database the statement was executed on
+     * @param sql the executed statement
+     */
+    static void invalidate(Database db, String sql) {
+        if (!isEnabled()) {
+            return;
+        }
+        Matcher matcher = WRITE_TABLE.matcher(sql);
+        if (matcher.find()) {
+            invalidateTable(db, matcher.group(1));
+        }
+    }
+
+    /**
+     * removes the cached results that read from the given table
+     *
+     * @param db the database the table belongs to
+     * @param table the name of the table
+     */
+    public static void invalidateTable(Database db, String table) {
+        String name = tableName(db, table);
+        synchronized (entries) {
+            generation.incrementAndGet();
+            Iterator<CachedResult> iter = entries.values().iterator();
+            while (iter.hasNext()) {
+                if (iter.next().tables.contains(name)) {
+                    iter.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * removes every cached result
+     */
+    public static void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * returns the hit, miss, eviction, invalidation and expiration counts of
+     * the cache together with the hit ratio and the number of cached results
+     */
+    public static JSONObject getStatistics() {
+        HashMap<String, Object> stats = new HashMap<>();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        stats.put("enabled", isEnabled());
+        synchronized (entries) {
+            stats.put("size", entries.size());
+        }
+        stats.put("max_size", maxSize);
+        stats.put("ttl", ttl);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hit_ratio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        stats.put("evictions", evictions.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("expirations", expirations.get());
+        return new JSONObject(stats);
+    }
+
+    private static Set<String> readTables(Database db, String sql) {
+        HashSet<String> tables = new HashSet<>();
+        Matcher matcher = READ_TABLES.matcher(sql);
+        while (matcher.find()) {
+            for (String table : matcher.group(1).split(",")) {
+                // drop the alias e.g. USERS u
+                tables.add(tableName(db, table.trim().split("\\s+")[0]));
+            }
+        }
+        return tables;
+    }
+
+    private static String tableName(Database db, String table) {
+        String name = table.replace("`", "").toUpperCase();
+        return name.contains(".") ? name : db.getDatabaseName().toUpperCase() + "." + name;
+    }
+
+    private static String key(Database db, String sql, String[] params) {
+        StringBuilder key = new StringBuilder(db.getDatabaseName()).append('\u0000').append(sql);
+        if (params != null) {
+            for (String param : params) {
+                key.append('\u0000').append(param);
+            }
+        }
+        return key.toString();
+    }
+
+    /*
+     * callers are free to modify the json they get back from a query so the
+     * cache only ever hands out copies of the column arrays
+     */
+    private static JSONObject copy(JSONObject result) {
+        HashMap<String, Object> columns = new HashMap<>();
+        Iterator iter = result.keys();
+        while (iter.hasNext()) {
+            String key = iter.next().toString();
+            Object value = result.opt(key);
+            columns.put(key, value instanceof JSONArray ? new JSONArray(((JSONArray) value).toList()) : value);
+        }
+        return new JSONObject(columns);
+    }
+
+    private static class CachedResult {
+
+        private final JSONObject result;
+
+        private final Set<String> tables;
+
+        private final long expires;
+
+        CachedResult(JSONObject result, Set<String> tables, long expires) {
+            this.result = result;
+            this.tables = tables;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.quest.access.common.mysql;
+
+import com.quest.access.common.Logger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import javax.servlet.ServletConfig;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * This file keeps the timing of every statement executed through Database.
+ * Statements are grouped by their normalized sql i.e. the sql with literals
+ * replaced by ? and whitespace collapsed, and every group keeps a latency
+ * histogram. Statements slower than a threshold are written to the slow query
+ * log together with their parameters and the endpoint that executed them.
+ * <p>
+ * The following servlet init parameters are read
+ * <ol>
+ * <li>slow-query-threshold - milliseconds after which a statement is logged
+ * as slow, default 1000, a negative value disables the slow query log</li>
+ * <li>slow-query-log - the file the slow query log is written to, it is
+ * written to the console when this is not set</li>
+ * <li>slow-query-explain - true to log the EXPLAIN output of a slow select,
+ * once for every normalized sql, default false</li>
+ * </ol>
+ * </p>
+ *
+ * @author connie
+ */
+public class QueryStats {
+
+    /*
+     * the upper bounds of the histogram buckets in milliseconds, the last
+     * bucket holds everything slower than the last bound
+     */
+    private static final long[] BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    /*
+     * the number of normalized statements we keep histograms for, any other
+     * statement is counted under OTHER
+     */
+    private static final int MAX_TRACKED_STATEMENTS = 1000;
+
+    private static final String OTHER = "OTHER";
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.|'')*'");
+
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+
+    private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /*
+     * the normalized statements whose EXPLAIN has been logged
+     */
+    private static final Set<String> explained = ConcurrentHashMap.newKeySet();
+
+    private static final ThreadLocal<String> endpoint = new ThreadLocal<>();
+
+    private static long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(1000);
+
+    private static boolean explain = false;
+
+    private static Logger slowLog;
+
+    private QueryStats() {
+    }
+
+    /**
+     * reads the slow-query-* init parameters
+     *
+     * @param config the servlet config
+     */
+    public static void configure(ServletConfig config) {
+        String threshold = config.getInitParameter("slow-query-threshold");
+        if (threshold != null && !threshold.trim().isEmpty()) {
+            long millis = Long.parseLong(threshold.trim());
+            thresholdNanos = millis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+        explain = Boolean.parseBoolean(config.getInitParameter("slow-query-explain"));
+        String file = config.getInitParameter("slow-query-log");
+        slowLog = file == null || file.trim().isEmpty() ? null : new Logger(file.trim());
+    }
+
+    /**
+     * sets the endpoint whose statements the calling thread is about to
+     * execute, it is written to the slow query log with every slow statement
+     *
+     * @param name the endpoint e.g. user_service/edit_user
+     */
+    public static void setEndpoint(String name) {
+        endpoint.set(name);
+    }
+
+    /**
+     * clears the endpoint set with setEndpoint()
+     */
+    public static void clearEndpoint() {
+        endpoint.remove();
+    }
+
+    /**
+     * records how long a statement took and logs it when it is slow
+     *
+     * @param db the database the statement ran on
+     * @param sql the statement
+     * @param params the bound parameters, null for a plain statement
+     * @param nanos the time taken as measured with System.nanoTime()
+     */
+    static void record(Database db, String sql, String[] params, long nanos) {
+        String shape = normalize(sql);
+        Histogram histogram = histograms.get(shape);
+        if (histogram == null) {
+            if (histograms.size() >= MAX_TRACKED_STATEMENTS) {
+                shape = OTHER;
+            }
+            Histogram newHistogram = new Histogram();
+            histogram = histograms.putIfAbsent(shape, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.add(nanos);
+        if (thresholdNanos >= 0 && nanos >= thresholdNanos) {
+            logSlow(db, sql, shape, params, nanos);
+        }
+    }
+
+    /**
+     * returns the count, average, maximum, estimated percentiles and the
+     * histogram of every normalized statement keyed by the normalized sql. The
+     * percentiles are the upper bound of the bucket they fall in
+     */
+    public static JSONObject getStatistics() {
+        HashMap<String, Object> stats = new HashMap<>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        return new JSONObject(stats);
+    }
+
+    /**
+     * clears all the histograms
+     */
+    public static void reset() {
+        histograms.clear();
+        explained.clear();
+    }
+
+    /**
+     * returns the sql with string and number literals replaced by ?, lists of
+     * placeholders collapsed to (?+) and whitespace collapsed, so statements
+     * that only differ in their values are counted together
+     */
+    static String normalize(String sql) {
+        String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+        shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+        shape = PLACEHOLDER_LIST.matcher(shape).replaceAll("(?+)");
+        return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+    }
+
+    private static void logSlow(final Database db, final String sql, final String shape, String[] params, long nanos) {
+        StringBuilder entry = new StringBuilder();
+        entry.append(TimeUnit.NANOSECONDS.toMillis(nanos)).append("ms");
+        entry.append(" [").append(db.getDatabaseName()).append("]");
+        String name = endpoint.get();
+        entry.append(" [").append(name == null ? "-" : name).append("] ");
+        entry.append(sql);
+        if (params != null) {
+            entry.append(" params ").append(Arrays.toString(params));
+        }
+        write(entry.toString());
+        if (explain && !OTHER.equals(shape) && sql.trim().toUpperCase().startsWith("SELECT") && explained.add(shape)) {
+            final String[] values = params == null ? new String[0] : params.clone();
+            // explain on another thread so the request is not slowed down further
+            try {
+                ConnectionPool.getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        write("EXPLAIN " + shape + "\n" + explain(db, sql, values));
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // the jdbc executor is full, explain the statement the next time it is slow
+                explained.remove(shape);
+            }
+        }
+    }
+
+    private static String explain(Database db, String sql, String[] params) {
+        Connection conn = db.getConnection();
+        PreparedStatement pstatement = null;
+        ResultSet set = null;
+        try {
+            pstatement = conn.prepareStatement("EXPLAIN " + sql);
+            for (int x = 0; x < params.length; x++) {
+                pstatement.setString(x + 1, params[x]);
+            }
+            set = pstatement.executeQuery();
+            ResultSetMetaData meta = set.getMetaData();
+            StringBuilder plan = new StringBuilder();
+            while (set.next()) {
+                for (int x = 1; x <= meta.getColumnCount(); x++) {
+                    plan.append(meta.getColumnLabel(x)).append("=").append(set.getString(x)).append(" ");
+                }
+                plan.append("\n");
+            }
+            return plan.toString();
+        } catch (SQLException ex) {
+            return ex.toString();
+        } finally {
+            try {
+                if (set != null) {
+                    set.close();
+                }
+                if (pstatement != null) {
+                    pstatement.close();
+                }
+            } catch (SQLException ex) {
+                java.util.logging.Logger.getLogger(QueryStats.class.getName()).log(Level.FINE, null, ex);
+            }
+            db.releaseConnection(conn);
+        }
+    }
+
+    private static void write(String entry) {
+        Logger log = slowLog;
+        if (log != null) {
+            log.logText("SLOW QUERY", entry);
+        } else {
+            Logger.toConsole("Slow query " + entry, QueryStats.class);
+        }
+    }
+
+    /*
+     * a fixed bucket latency histogram that can be updated without locking
+     */
+    private static class Histogram {
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void add(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        JSONObject toJSON() {
+            HashMap<String, Object> stats = new HashMap<>();
+            long total = count.get();
+            stats.put("count", total);
+            stats.put("avg_ms", total == 0 ? 0.0 : totalNanos.get() / 1e6 / total);
+            stats.put("max_ms", maxNanos.get() / 1e6);
+            stats.put("p50_ms", percentile(total, 0.50));
+            stats.put("p95_ms", percentile(total, 0.95));
+            stats.put("p99_ms", percentile(total, 0.99));
+            JSONArray buckets = new JSONArray();
+            for (int x = 0; x < counts.length(); x++) {
+                buckets.put(counts.get(x));
+            }
+            stats.put("buckets", buckets);
+            stats.put("bucket_bounds_ms", new JSONArray(Arrays.asList(boxedBuckets())));
+            return new JSONObject(stats);
+        }
+
+        private long percentile(long total, double fraction) {
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int x = 0; x < counts.length(); x++) {
+                seen += counts.get(x);
+                if (seen >= rank && rank > 0) {
+                    return x < BUCKETS.length ? BUCKETS[x] : TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+                }
+            }
+            return 0;
+        }
+
+        private Long[] boxedBuckets() {
+            Long[] bounds = new Long[BUCKETS.length];
+            for (int x = 0; x < BUCKETS.length; x++) {
+                bounds[x] = BUCKETS[x];
+            }
+            return bounds;
+        }
+    }
+}
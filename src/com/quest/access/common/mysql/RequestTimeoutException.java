@@ -0,0 +1,46 @@
+package com.quest.access.common.mysql;
+
+/*
+ * This file defines an exception
+ * a request timeout exception is thrown when a statement is executed after
+ * the deadline of the request it runs for has passed, or is cancelled because
+ * the deadline passed while it was running
+ */
+/**
+ *
+ * @author connie
+ */
+public class RequestTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * the error code sent to clients for a request that timed out
+     */
+    public static final String ERROR_CODE = "request_timeout";
+
+    public RequestTimeoutException(String message) {
+        super(message);
+    }
+
+    public RequestTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * returns the request timeout exception in the causes of the given
+     * throwable, services often wrap it
+     *
+     * @param ex the throwable
+     * @return the exception or null if it was not caused by one
+     */
+    public static RequestTimeoutException find(Throwable ex) {
+        for (int x = 0; ex != null && x < 10; x++) {
+            if (ex instanceof RequestTimeoutException) {
+                return (RequestTimeoutException) ex;
+            }
+            ex = ex.getCause();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,457 @@
+package com.quest.access.common.mysql;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.RandomAccess;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * This file implements a column oriented query result whose columns are stored
+ * in primitive arrays chosen from the ResultSetMetaData of the query. Integer
+ * columns are kept in a long[], DOUBLE and FLOAT columns in a double[], BOOL
+ * and BIT(1) columns in a boolean[] and every other column e.g. VARCHAR,
+ * DATETIME, DECIMAL in a String[], so reading a number does not parse a
+ * string or box a value.
+ * <p>
+ * toJSON() returns the same shape as Database.query() i.e. a json object with
+ * a json array of strings for every column. The arrays are views over the
+ * primitive columns and format a value only when it is read, a view copies its
+ * column the first time it is modified
+ * </p>
+ *
+ * @author connie
+ */
+public class ResultTable {
+
+    public static final int LONG = 0;
+
+    public static final int DOUBLE = 1;
+
+    public static final int BOOLEAN = 2;
+
+    public static final int STRING = 3;
+
+    private final String[] labels;
+
+    private final int[] types;
+
+    private final HashMap<String, Integer> indexes;
+
+    private final Object[] columns;
+
+    private final BitSet[] nulls;
+
+    private int rows;
+
+    private JSONObject json;
+
+    private ColumnList[] views;
+
+    private ResultTable(ResultSetMetaData meta) throws SQLException {
+        int count = meta.getColumnCount();
+        this.labels = new String[count];
+        this.types = new int[count];
+        this.indexes = new HashMap<>();
+        this.columns = new Object[count];
+        this.nulls = new BitSet[count];
+        for (int x = 0; x < count; x++) {
+            labels[x] = meta.getColumnLabel(x + 1);
+            types[x] = typeOf(meta, x + 1);
+            indexes.put(labels[x], x);
+            nulls[x] = new BitSet();
+            columns[x] = allocate(types[x], 16);
+        }
+    }
+
+    /**
+     * reads all the rows of a result set into a new table
+     *
+     * @param set the result set positioned before the first row
+     * @return the table, an empty table with no columns if set is null
+     */
+    static ResultTable read(ResultSet set) throws SQLException {
+        if (set == null) {
+            return new ResultTable();
+        }
+        ResultTable table = new ResultTable(set.getMetaData());
+        while (set.next()) {
+            table.readRow(set);
+        }
+        return table;
+    }
+
+    private ResultTable() {
+        this.labels = new String[0];
+        this.types = new int[0];
+        this.indexes = new HashMap<>();
+        this.columns = new Object[0];
+        this.nulls = new BitSet[0];
+    }
+
+    private void readRow(ResultSet set) throws SQLException {
+        if (rows == capacity()) {
+            for (int x = 0; x < columns.length; x++) {
+                columns[x] = grow(columns[x], types[x], rows * 2);
+            }
+        }
+        for (int x = 0; x < columns.length; x++) {
+            switch (types[x]) {
+                case LONG:
+                    ((long[]) columns[x])[rows] = set.getLong(x + 1);
+                    break;
+                case DOUBLE:
+                    ((double[]) columns[x])[rows] = set.getDouble(x + 1);
+                    break;
+                case BOOLEAN:
+                    ((boolean[]) columns[x])[rows] = set.getBoolean(x + 1);
+                    break;
+                default:
+                    ((String[]) columns[x])[rows] = set.getString(x + 1);
+            }
+            if (set.wasNull()) {
+                nulls[x].set(rows);
+            }
+        }
+        rows++;
+    }
+
+    private int capacity() {
+        if (columns.length == 0) {
+            return Integer.MAX_VALUE;
+        }
+        switch (types[0]) {
+            case LONG:
+                return ((long[]) columns[0]).length;
+            case DOUBLE:
+                return ((double[]) columns[0]).length;
+            case BOOLEAN:
+                return ((boolean[]) columns[0]).length;
+            default:
+                return ((String[]) columns[0]).length;
+        }
+    }
+
+    private static int typeOf(ResultSetMetaData meta, int column) throws SQLException {
+        switch (meta.getColumnType(column)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return LONG;
+            case Types.BIGINT:
+                // an unsigned BIGINT does not fit in a long
+                return meta.isSigned(column) ? LONG : STRING;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return DOUBLE;
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.BIT:
+                return meta.getPrecision(column) <= 1 ? BOOLEAN : STRING;
+            default:
+                return STRING;
+        }
+    }
+
+    private static Object allocate(int type, int size) {
+        switch (type) {
+            case LONG:
+                return new long[size];
+            case DOUBLE:
+                return new double[size];
+            case BOOLEAN:
+                return new boolean[size];
+            default:
+                return new String[size];
+        }
+    }
+
+    private static Object grow(Object column, int type, int size) {
+        switch (type) {
+            case LONG:
+                return Arrays.copyOf((long[]) column, size);
+            case DOUBLE:
+                return Arrays.copyOf((double[]) column, size);
+            case BOOLEAN:
+                return Arrays.copyOf((boolean[]) column, size);
+            default:
+                return Arrays.copyOf((String[]) column, size);
+        }
+    }
+
+    /**
+     * @return the number of rows in this table
+     */
+    public int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * @return the number of columns in this table
+     */
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    /**
+     * @param column the index of the column starting from 0
+     * @return the label of the column as returned by the query
+     */
+    public String getColumnLabel(int column) {
+        return labels[column];
+    }
+
+    /**
+     * @param label the label of the column
+     * @return the index of the column or -1 if there is no such column
+     */
+    public int getColumnIndex(String label) {
+        Integer index = indexes.get(label);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @param column the index of the column
+     * @return one of LONG, DOUBLE, BOOLEAN or STRING
+     */
+    public int getColumnType(int column) {
+        return types[column];
+    }
+
+    /**
+     * @return true if the value in the given row and column is sql NULL
+     */
+    public boolean isNull(int row, int column) {
+        checkRow(row);
+        return nulls[column].get(row);
+    }
+
+    /**
+     * returns the value as a long, double columns are truncated, boolean
+     * columns return 1 or 0 and string columns are parsed. sql NULL is 0
+     */
+    public long getLong(int row, int column) {
+        checkRow(row);
+        switch (types[column]) {
+            case LONG:
+                return ((long[]) columns[column])[row];
+            case DOUBLE:
+                return (long) ((double[]) columns[column])[row];
+            case BOOLEAN:
+                return ((boolean[]) columns[column])[row] ? 1 : 0;
+            default:
+                String value = ((String[]) columns[column])[row];
+                return value == null ? 0 : (long) Double.parseDouble(value);
+        }
+    }
+
+    /**
+     * returns the value as a double, boolean columns return 1 or 0 and string
+     * columns are parsed. sql NULL is 0
+     */
+    public double getDouble(int row, int column) {
+        checkRow(row);
+        switch (types[column]) {
+            case LONG:
+                return ((long[]) columns[column])[row];
+            case DOUBLE:
+                return ((double[]) columns[column])[row];
+            case BOOLEAN:
+                return ((boolean[]) columns[column])[row] ? 1 : 0;
+            default:
+                String value = ((String[]) columns[column])[row];
+                return value == null ? 0 : Double.parseDouble(value);
+        }
+    }
+
+    /**
+     * returns the value as a boolean, numbers other than 0 are true and string
+     * columns are true when they hold "1" or "true". sql NULL is false
+     */
+    public boolean getBoolean(int row, int column) {
+        checkRow(row);
+        switch (types[column]) {
+            case LONG:
+                return ((long[]) columns[column])[row] != 0;
+            case DOUBLE:
+                return ((double[]) columns[column])[row] != 0;
+            case BOOLEAN:
+                return ((boolean[]) columns[column])[row];
+            default:
+                String value = ((String[]) columns[column])[row];
+                return "1".equals(value) || "true".equalsIgnoreCase(value);
+        }
+    }
+
+    /**
+     * returns the value formatted the way mysql returns it as a string e.g.
+     * "1" for a true BOOL, or null for sql NULL
+     */
+    public String getString(int row, int column) {
+        checkRow(row);
+        if (nulls[column].get(row)) {
+            return null;
+        }
+        switch (types[column]) {
+            case LONG:
+                return Long.toString(((long[]) columns[column])[row]);
+            case DOUBLE:
+                double value = ((double[]) columns[column])[row];
+                // mysql writes whole numbers without a decimal point
+                if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                    return Long.toString((long) value);
+                }
+                return Double.toString(value);
+            case BOOLEAN:
+                return ((boolean[]) columns[column])[row] ? "1" : "0";
+            default:
+                return ((String[]) columns[column])[row];
+        }
+    }
+
+    /**
+     * @see #getLong(int, int)
+     */
+    public long getLong(int row, String label) {
+        return getLong(row, column(label));
+    }
+
+    /**
+     * @see #getDouble(int, int)
+     */
+    public double getDouble(int row, String label) {
+        return getDouble(row, column(label));
+    }
+
+    /**
+     * @see #getBoolean(int, int)
+     */
+    public boolean getBoolean(int row, String label) {
+        return getBoolean(row, column(label));
+    }
+
+    /**
+     * @see #getString(int, int)
+     */
+    public String getString(int row, String label) {
+        return getString(row, column(label));
+    }
+
+    /**
+     * returns this table in the shape returned by Database.query(), the json
+     * arrays read from the primitive columns of this table and only copy a
+     * column when it is modified. The same json object is returned on every
+     * call
+     */
+    public JSONObject toJSON() {
+        if (json == null) {
+            JSONObject obj = new JSONObject();
+            ColumnList[] lists = new ColumnList[labels.length];
+            for (int x = 0; x < labels.length; x++) {
+                lists[x] = new ColumnList(x);
+                try {
+                    obj.put(labels[x], JSONArray.wrap(lists[x]));
+                } catch (JSONException ex) {
+
+                }
+            }
+            views = lists;
+            json = obj;
+        }
+        return json;
+    }
+
+    /**
+     * returns true if the given json array is the unmodified view of a column
+     * of this table returned by toJSON(), in which case the typed getters of
+     * this table return the same values as the array
+     *
+     * @param label the label of the column
+     * @param array a json array
+     */
+    public boolean isView(String label, JSONArray array) {
+        int column = getColumnIndex(label);
+        if (column == -1 || views == null || array == null) {
+            return false;
+        }
+        return array.toList() == views[column] && views[column].copy == null;
+    }
+
+    private int column(String label) {
+        Integer index = indexes.get(label);
+        if (index == null) {
+            throw new IllegalArgumentException("No column " + label + " in result");
+        }
+        return index;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of range [0.." + rows + ")");
+        }
+    }
+
+    /*
+     * a list view over one column that formats values as they are read and
+     * copies the column into an array list before it is modified
+     */
+    private class ColumnList extends AbstractList<Object> implements RandomAccess {
+
+        private final int column;
+
+        private ArrayList<Object> copy;
+
+        ColumnList(int column) {
+            this.column = column;
+        }
+
+        @Override
+        public Object get(int index) {
+            if (copy != null) {
+                return copy.get(index);
+            }
+            return getString(index, column);
+        }
+
+        @Override
+        public int size() {
+            return copy == null ? rows : copy.size();
+        }
+
+        @Override
+        public Object set(int index, Object value) {
+            return copy().set(index, value);
+        }
+
+        @Override
+        public void add(int index, Object value) {
+            copy().add(index, value);
+        }
+
+        @Override
+        public Object remove(int index) {
+            return copy().remove(index);
+        }
+
+        private ArrayList<Object> copy() {
+            if (copy == null) {
+                ArrayList<Object> list = new ArrayList<>(rows + 1);
+                for (int x = 0; x < rows; x++) {
+                    list.add(getString(x, column));
+                }
+                copy = list;
+            }
+            modCount++;
+            return copy;
+        }
+    }
+}
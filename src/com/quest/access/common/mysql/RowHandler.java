@@ -0,0 +1,28 @@
+package com.quest.access.common.mysql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This file defines the callback used by Database.stream() to process rows one
+ * at a time. The result set passed to the handler is positioned on the current
+ * row and is only valid for the duration of the call, handlers should copy out
+ * the values they need and must not call next() or close() on it
+ *
+ * @author connie
+ * @see Database#stream(java.lang.String, java.lang.String[],
+ * com.quest.access.common.mysql.RowHandler)
+ */
+public interface RowHandler {
+
+    /**
+     * called once for every row returned by the query
+     *
+     * @param row the result set positioned on the current row
+     * @return true to continue with the next row, false to stop handling rows,
+     * note that when the driver streams rows the ones left are still read off
+     * the connection when the result set is closed
+     */
+    public boolean handleRow(ResultSet row) throws SQLException;
+
+}
@@ -0,0 +1,134 @@
+package com.quest.access.common.mysql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import org.json.JSONObject;
+
+/**
+ * This file implements a least recently used cache of prepared statements for
+ * a single pooled connection keyed by the sql text. A connection is only used
+ * by the thread that checked it out so the cache itself needs no locking.
+ * Statements are only prepared on the mysql server when the jdbc url sets
+ * useServerPrepStmts=true, otherwise the driver prepares them on the client
+ * and the cache saves the parsing of the sql.
+ * <p>
+ * The number of statements kept per connection is set with the
+ * statement-cache-size init parameter, a size of 0 disables caching
+ * </p>
+ *
+ * @author connie
+ */
+public class StatementCache {
+
+    /*
+     * the number of distinct statements we keep hit and miss counts for
+     */
+    private static final int MAX_TRACKED_STATEMENTS = 1000;
+
+    /*
+     * hit and miss counts keyed by sql text, shared by all connections
+     */
+    private static final ConcurrentHashMap<String, AtomicLong[]> counters = new ConcurrentHashMap<>();
+
+    private final Connection conn;
+
+    private final int capacity;
+
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    StatementCache(Connection conn, final int capacity) {
+        this.conn = conn;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > capacity) {
+                    close(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.capacity = capacity;
+    }
+
+    /**
+     * returns a prepared statement for the given sql, reusing the statement
+     * from an earlier call on this connection if it is still cached. the
+     * statement must be handed back with release() once it has been executed
+     *
+     * @param sql the sql with ? placeholders
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement pstatement = statements.get(sql);
+        if (pstatement != null && !pstatement.isClosed()) {
+            count(sql, 0);
+            pstatement.clearParameters();
+            return pstatement;
+        }
+        count(sql, 1);
+        pstatement = conn.prepareStatement(sql);
+        if (capacity > 0) {
+            statements.put(sql, pstatement);
+        }
+        return pstatement;
+    }
+
+    /**
+     * closes the statement unless it is kept in the cache
+     *
+     * @param sql the sql the statement was prepared with
+     * @param pstatement the statement returned by prepare()
+     */
+    void release(String sql, PreparedStatement pstatement) {
+        if (statements.get(sql) != pstatement) {
+            close(pstatement);
+        }
+    }
+
+    /**
+     * returns the hit and miss counts of every tracked statement keyed by the
+     * sql text, a low hit count for a frequent statement means the cache is too
+     * small or the sql is being built with literal values
+     */
+    public static JSONObject getStatistics() {
+        HashMap<String, Object> stats = new HashMap<>();
+        for (Map.Entry<String, AtomicLong[]> entry : counters.entrySet()) {
+            HashMap<String, Object> counts = new HashMap<>();
+            counts.put("hits", entry.getValue()[0].get());
+            counts.put("misses", entry.getValue()[1].get());
+            stats.put(entry.getKey(), new JSONObject(counts));
+        }
+        return new JSONObject(stats);
+    }
+
+    private static void count(String sql, int index) {
+        AtomicLong[] counts = counters.get(sql);
+        if (counts == null) {
+            if (counters.size() >= MAX_TRACKED_STATEMENTS) {
+                return;
+            }
+            AtomicLong[] newCounts = new AtomicLong[]{new AtomicLong(), new AtomicLong()};
+            counts = counters.putIfAbsent(sql, newCounts);
+            if (counts == null) {
+                counts = newCounts;
+            }
+        }
+        counts[index].incrementAndGet();
+    }
+
+    private static void close(PreparedStatement pstatement) {
+        try {
+            pstatement.close();
+        } catch (SQLException ex) {
+            java.util.logging.Logger.getLogger(StatementCache.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.quest.access.common.mysql;
+
+/**
+ * This file defines the work done by Database.inTransaction(). Every statement
+ * the callback executes on a database with the same name runs on the one
+ * connection bound to the calling thread and is committed together once the
+ * callback returns, if the callback throws everything is rolled back
+ *
+ * @author connie
+ * @see Database#inTransaction(com.quest.access.common.mysql.TransactionCallback)
+ */
+public interface TransactionCallback<T> {
+
+    /**
+     * executes the statements of the transaction
+     *
+     * @return the value returned by inTransaction()
+     */
+    public T doInTransaction() throws Exception;
+
+}
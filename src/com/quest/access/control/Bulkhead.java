@@ -0,0 +1,274 @@
+package com.quest.access.control;
+
+import com.quest.access.common.Logger;
+import com.quest.access.common.mysql.Database;
+import com.quest.access.common.mysql.QueryStats;
+import com.quest.access.common.mysql.RequestTimeoutException;
+import com.quest.access.useraccess.services.annotations.WebService;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletConfig;
+import org.json.JSONObject;
+
+/**
+ * This file implements the executor of a service that declares threads in its
+ * WebService annotation. The endpoints of the service run on the threads of its
+ * bulkhead so a slow service can only hold its own threads, once they are all
+ * busy and the queue is full further requests for the service are rejected
+ * while the other services keep running. The request thread waits while the
+ * endpoint runs, so a service holds at most threads + queue request threads,
+ * by default nothing is queued and a request that finds every thread busy is
+ * rejected at once. The level of the service is the priority of the threads
+ * of its bulkhead.
+ * <p>
+ * The annotation can be overridden with the following servlet init parameters
+ * <ol>
+ * <li>bulkhead-threads.&lt;service&gt; - the threads of the service, 0 runs
+ * the service on the request thread</li>
+ * <li>bulkhead-queue.&lt;service&gt; - the requests that may wait for a
+ * thread, keep threads + queue well below request-threads</li>
+ * <li>bulkhead-rejection.&lt;service&gt; - abort or caller_runs</li>
+ * <li>bulkhead-timeout - milliseconds a request without a deadline waits for
+ * an endpoint running on a bulkhead, default 30000</li>
+ * </ol>
+ * </p>
+ *
+ * @author connie
+ */
+public class Bulkhead {
+
+    /*
+     * the bulkhead whose thread is running the calling thread's endpoint
+     */
+    private static final ThreadLocal<Bulkhead> current = new ThreadLocal<>();
+
+    private final String service;
+
+    private final int threads;
+
+    private final int queueLimit;
+
+    private final boolean callerRuns;
+
+    private final long timeoutNanos;
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong ranByCaller = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    private final long started = System.nanoTime();
+
+    private Bulkhead(final String service, int threads, int queueLimit, String rejection, int level, long timeout) {
+        this.service = service;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.threads = threads;
+        this.queueLimit = queueLimit;
+        this.callerRuns = "caller_runs".equals(rejection);
+        final int priority = level <= 0 ? Thread.NORM_PRIORITY : Math.min(Thread.MAX_PRIORITY, level);
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                queueLimit == 0 ? new SynchronousQueue<Runnable>() : new ArrayBlockingQueue<Runnable>(queueLimit), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "quest-" + service + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(priority);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+                        if (callerRuns && !pool.isShutdown()) {
+                            ranByCaller.incrementAndGet();
+                            r.run();
+                            return;
+                        }
+                        rejected.incrementAndGet();
+                        throw new ServiceBusyException(service, Bulkhead.this.threads + " requests are running and "
+                                + Bulkhead.this.queueLimit + " are waiting");
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * creates the bulkhead of a service
+     *
+     * @param service the name of the service
+     * @param webService the annotation of the service
+     * @param config the servlet config, may be null
+     * @return the bulkhead or null if the service runs on the request thread
+     */
+    static Bulkhead forService(String service, WebService webService, ServletConfig config) {
+        int threads = intParam(config, "bulkhead-threads." + service, webService.threads());
+        if (threads <= 0) {
+            return null;
+        }
+        int queueLimit = Math.max(0, intParam(config, "bulkhead-queue." + service, webService.queue()));
+        if (threads + queueLimit >= intParam(config, "request-threads", 64)) {
+            Logger.toConsole("The bulkhead of " + service + " can hold every request thread, lower its threads or queue", Bulkhead.class);
+        }
+        String rejection = config == null ? null : config.getInitParameter("bulkhead-rejection." + service);
+        rejection = rejection == null || rejection.trim().isEmpty() ? webService.rejection() : rejection.trim();
+        long timeout = Math.max(1, intParam(config, "bulkhead-timeout", 30000));
+        return new Bulkhead(service, threads, queueLimit, rejection, webService.level(), timeout);
+    }
+
+    /**
+     * @return true if the calling thread belongs to a bulkhead, work started
+     * from it runs on it to avoid waiting for a bulkhead that may be full
+     */
+    static boolean isBulkheadThread() {
+        return current.get() != null;
+    }
+
+    /**
+     * runs the task on a thread of this bulkhead and waits for it until the
+     * deadline, the deadline is bound to the task and the primary pin and
+     * statistics endpoint of the calling thread are carried over to it. A
+     * request without a deadline waits at most bulkhead-timeout
+     *
+     * @param task the task
+     * @param endpoint the endpoint the task runs, for the statistics
+     * @param deadline the deadline of the endpoint as a System.nanoTime()
+     * value or 0 if it has none
+     * @return the result of the task
+     * @throws ServiceBusyException if the bulkhead is full
+     * @throws RequestTimeoutException if the deadline passed first
+     * @throws Exception the exception thrown by the task
+     */
+    <T> T call(final Callable<T> task, final String endpoint, final long deadline) throws Exception {
+        final Thread caller = Thread.currentThread();
+        final boolean pinned = Database.isPinnedToPrimary();
+        final long queued = System.nanoTime();
+        final long until = deadline == 0 ? queued + timeoutNanos : deadline;
+        submitted.incrementAndGet();
+        Future<T> future = executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                recordWait(start - queued);
+                Bulkhead previous = current.get();
+                current.set(Bulkhead.this);
+                boolean onCaller = Thread.currentThread() == caller;
+                if (!onCaller) {
+                    Database.setDeadline(until);
+                    QueryStats.setEndpoint(endpoint);
+                    if (pinned) {
+                        Database.pinToPrimary();
+                    }
+                }
+                try {
+                    return task.call();
+                } finally {
+                    if (previous == null) {
+                        current.remove();
+                    } else {
+                        current.set(previous);
+                    }
+                    if (!onCaller) {
+                        Database.setDeadline(0);
+                        Database.clearPrimaryPin();
+                        QueryStats.clearEndpoint();
+                    }
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    completed.incrementAndGet();
+                }
+            }
+        });
+        try {
+            return future.get(Math.max(0, until - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            throw new RequestTimeoutException("Service " + service + " did not respond before the deadline of the request", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        }
+    }
+
+    private void recordWait(long nanos) {
+        waitNanos.addAndGet(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    /**
+     * @return the name of the service of this bulkhead
+     */
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * @return the fraction of the threads of this bulkhead running a request
+     * right now
+     */
+    public double getUtilisation() {
+        return (double) executor.getActiveCount() / threads;
+    }
+
+    /**
+     * returns the state of this bulkhead, utilisation is the fraction of the
+     * threads busy right now and busy_ratio the fraction of the thread time
+     * spent on requests since the bulkhead was created
+     */
+    JSONObject toJSON() {
+        long done = completed.get();
+        long elapsed = Math.max(1, System.nanoTime() - this.started);
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("threads", threads);
+        stats.put("max_queue", queueLimit);
+        stats.put("rejection", callerRuns ? "caller_runs" : "abort");
+        stats.put("active", executor.getActiveCount());
+        stats.put("queued", executor.getQueue().size());
+        stats.put("utilisation", getUtilisation());
+        stats.put("busy_ratio", (double) busyNanos.get() / elapsed / threads);
+        stats.put("submitted", submitted.get());
+        stats.put("completed", done);
+        stats.put("rejected", rejected.get());
+        stats.put("caller_runs", ranByCaller.get());
+        stats.put("avg_wait_ms", done == 0 ? 0.0 : waitNanos.get() / 1e6 / done);
+        stats.put("max_wait_ms", maxWaitNanos.get() / 1e6);
+        stats.put("avg_run_ms", done == 0 ? 0.0 : busyNanos.get() / 1e6 / done);
+        return new JSONObject(stats);
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private static int intParam(ServletConfig config, String name, int fallback) {
+        String value = config == null ? null : config.getInitParameter(name);
+        return value == null || value.trim().isEmpty() ? fallback : Integer.parseInt(value.trim());
+    }
+
+}
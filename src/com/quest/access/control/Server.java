@@ -5,6 +5,11 @@ import com.quest.access.common.Logger;
 import com.quest.access.common.UniqueRandom;
 import com.quest.access.common.io;
 import com.quest.access.common.mysql.ConnectionPool;
+import com.quest.access.common.mysql.DatabaseBusyException;
+import com.quest.access.common.mysql.Dialect;
+import com.quest.access.common.mysql.RequestTimeoutException;
+import com.quest.access.common.mysql.QueryStats;
+import com.quest.access.common.mysql.TransactionCallback;
 import com.quest.access.common.mysql.Database;
 import com.quest.access.crypto.Security;
 import com.quest.access.useraccess.*;
@@ -22,9 +27,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationHandler;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
@@ -36,12 +42,29 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpSession;
@@ -127,7 +150,8 @@ import org.json.JSONObject;
  * <li>username - this is the username of the connected client</li>
  * <li>host - this is the host from which the client is connecting</li>
  * <li>clientip - this is the ip address of the client machine</li>
- * <li>privileges - this is a hashmap containing the privileges of the user</li>
+ * <li>privileges - this is a PrivilegeSet containing the privileges of the
+ * user</li>
  * <li>userid - this is a string representing the twenty digit system generated
  * id</li>
  * <li>superiority - this is a double value representing the user's
@@ -238,23 +262,43 @@ public class Server {
      */
     private final ConcurrentHashMap<String, Object> runtimeServices;
 
+    private ServletConfig config;
+
     /*
-     * this hashmap contains mappings of message names to their respective
-     * methods
+     * milliseconds a request may take when its endpoint does not set a
+     * timeout, 0 for no limit
      */
-    private final ConcurrentHashMap<String, Method> serviceRegistry;
+    private long requestTimeout;
 
-    private ServletConfig config;
+    /*
+     * the endpoints of every service class keyed by message name and the
+     * methods shared with other services as {service, message, class}, the
+     * route table is compiled from these
+     */
+    private final ConcurrentHashMap<String, Map<String, Method>> endpointRegistry = new ConcurrentHashMap<>();
+
+    private final CopyOnWriteArrayList<String[]> shareRegistry = new CopyOnWriteArrayList<>();
 
     /*
-     * contains information about method sharing between services
+     * the compiled endpoints keyed by service name and message name, replaced
+     * as a whole when a service starts
      */
-    private final ConcurrentHashMap<String, Object[]> sharedRegistry;
+    private volatile Map<String, Map<String, Route>> routes = Collections.emptyMap();
+
+    /*
+     * the executors of the services that declare threads, keyed by service name
+     */
+    private final ConcurrentHashMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
     /**
      * the key is the root worker id and the value is an array of client workers
      */
     private final ConcurrentHashMap<String, ClientWorker[]> rootWorkers;
 
+    /*
+     * runs the workers of multi service requests, see invokeMultipleServices()
+     */
+    private ThreadPoolExecutor fanOutExecutor;
+
     /*This are tables the user can request data from safely from the frontend without a security breach*/
     private static final HashMap<String, HashMap<String, ArrayList>> safeTables = new HashMap();
     //database : {table : [columns]}
@@ -264,8 +308,6 @@ public class Server {
         this.name = name;
         this.multipleLogins = false;
         this.runtimeServices = new ConcurrentHashMap();
-        this.serviceRegistry = new ConcurrentHashMap();
-        this.sharedRegistry = new ConcurrentHashMap<>();
         this.rootWorkers = new ConcurrentHashMap<>();
         this.passwordLife = 1440;
         this.maxPasswordRetries = 0;
@@ -365,6 +407,8 @@ public class Server {
 
     public void setConfig(ServletConfig config) {
         this.config = config;
+        String timeout = config.getInitParameter("request-timeout");
+        this.requestTimeout = timeout == null || timeout.trim().isEmpty() ? 0 : Long.parseLong(timeout.trim());
     }
 
     public ServletConfig getConfig() {
@@ -448,8 +492,10 @@ public class Server {
        StringTokenizer tk = new StringTokenizer(dbs,",");
        while(tk.hasMoreTokens()){
           String db = tk.nextToken().trim();
+          String sql = Dialect.getDialect().createDatabase(db);
+          if (sql == null) continue; //created on first connection
           Database mysql = new Database("mysql");
-          mysql.execute("CREATE DATABASE IF NOT EXISTS "+db+"");
+          mysql.execute(sql);
        }
     }
     public final void createRootUser(String rootUser,Database db) {
@@ -585,6 +631,10 @@ public class Server {
                     int level = webService.level();
                     String serviceName = webService.name();
                     Service service = new Service(serviceName, serviceClass, this);
+                    Bulkhead bulkhead = Bulkhead.forService(serviceName, webService, config);
+                    if (bulkhead != null) {
+                        bulkheads.put(serviceName, bulkhead);
+                    }
                     values.add(serviceLocation);
                     values.add(level);
                     values.add(webService.privileged());
@@ -596,6 +646,7 @@ public class Server {
             }
         }
         Server.services = serviceMap;
+        buildRoutes();
     }
 
     private void initServiceModel(Class serviceClass) {
@@ -604,30 +655,108 @@ public class Server {
             Class<? extends Annotation> annotationType = annotation.annotationType();
             Models theModel = annotationType.getSimpleName().equals("Models") ? (Models) annotation : null;
             if (theModel != null) {
+                //the tables of a service are independent so they are reconciled in parallel
                 Model[] models = theModel.models();
-                for (Model model : models) {
-                    String tableName = model.table();
-                    String dbName = model.database();
-                    Database theDb = new Database(dbName);
-                    String[] columns = model.columns();
-                    String sql = Arrays.toString(columns).replace("[", " ").replace("]", " ");
-                    theDb.execute("CREATE TABLE IF NOT EXISTS " + tableName + " (" + sql + ")"); 
-                    JSONObject colData = theDb.query("SHOW COLUMNS FROM "+tableName+""); //these are the columns we have on the database
-                    //compare them with what we have on the model,model values ["TRAN_FLAG TEXT","NARRATION TEXT"]
-                    //here we want to compare the columns in the database and what is specified
-                    //in the models, if we detect any changes in the column structure we alter
-                    //the table to accommodate the structure change
-                    //SHOW COLUMNS FROM table
-                    resolveColumnChanges(theDb, tableName, colData, columns);
+                ExecutorService modelPool = Executors.newFixedThreadPool(Math.max(1, Math.min(models.length, getModelInitThreads())));
+                ArrayList<Future<?>> results = new ArrayList<>();
+                for (final Model model : models) {
+                    results.add(modelPool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            long start = System.nanoTime();
+                            initModel(model);
+                            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                            Logger.toConsole("Model " + model.database() + "." + model.table() + " initialized in " + millis + "ms", Server.class);
+                        }
+                    }));
+                }
+                for (int x = 0; x < results.size(); x++) {
+                    try {
+                        results.get(x).get();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (ExecutionException ex) {
+                        Logger.toConsole("Failed to initialize model " + models[x].table() + ": " + ex.getCause(), Server.class);
+                    }
+                }
+                modelPool.shutdown();
+            }
+        }
+    }
+
+    private int getModelInitThreads() {
+        String threads = config.getInitParameter("model-init-threads");
+        return threads == null || threads.trim().isEmpty() ? 4 : Integer.parseInt(threads.trim());
+    }
+
+    private void initModel(Model model) {
+        String tableName = model.table();
+        String dbName = model.database();
+        Database theDb = new Database(dbName);
+        String[] columns = model.columns();
+        String sql = Arrays.toString(columns).replace("[", " ").replace("]", " ");
+        theDb.execute("CREATE TABLE IF NOT EXISTS " + tableName + " (" + sql + ")");
+        JSONObject colData = Dialect.getDialect().describeColumns(theDb, tableName); //these are the columns we have on the database
+        //compare them with what we have on the model,model values ["TRAN_FLAG TEXT","NARRATION TEXT"]
+        //here we want to compare the columns in the database and what is specified
+        //in the models, if we detect any changes in the column structure we alter
+        //the table to accommodate the structure change
+        //SHOW COLUMNS FROM table
+        alterTable(theDb, tableName, resolveColumnChanges(tableName, colData, columns));
+        //every index is changed on its own so a failed index, e.g. a unique index
+        //over duplicate rows, neither blocks the columns nor the other indexes
+        for (List<String> indexChanges : resolveIndexChanges(theDb, tableName, model.indexes()).values()) {
+            alterTable(theDb, tableName, indexChanges);
+        }
+    }
+
+    /**
+     * applies the changes to a table in a single ALTER TABLE so the table is
+     * rebuilt at most once. When no column changes type and the dialect can
+     * alter in place the change is tried with ALGORITHM=INPLACE first so the
+     * table is not copied
+     */
+    private void alterTable(Database db, String table, List<String> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        Dialect dialect = Dialect.getDialect();
+        boolean inplace = dialect.supportsInplaceAlter();
+        for (String change : changes) {
+            if (change.startsWith("MODIFY")) {
+                inplace = false; //a new data type needs a copy
+            }
+        }
+        try {
+            if (inplace) {
+                try {
+                    execute(db, dialect.alterTable(table, changes, true));
+                } catch (RuntimeException ex) {
+                    //mysql refuses when the change can not be made in place
+                    execute(db, dialect.alterTable(table, changes, false));
                 }
+            } else {
+                execute(db, dialect.alterTable(table, changes, false));
             }
+            Logger.toConsole("Table " + table + " altered: " + changes, Server.class);
+        } catch (Exception ex) {
+            Logger.toConsole("Failed to alter " + table + ": " + ex, Server.class);
         }
     }
     
     
-    private void resolveColumnChanges(Database db,String table,JSONObject currentColData,String[] expectedColData){
+    private static void execute(Database db, String[] statements) {
+        for (String sql : statements) {
+            db.execute(sql);
+        }
+    }
+    
+    private List<String> resolveColumnChanges(String table,JSONObject currentColData,String[] expectedColData){
         //alter the table to change the data type of the column
         //alter the table to insert the extra columns
+        //the changes are collected and applied in one statement by alterTable()
+        ArrayList<String> changes = new ArrayList<>();
         List<String> currentColNames = listToUpperCase(currentColData.optJSONArray("Field").toList());
         List<String> currentDataTypes = listToUpperCase(currentColData.optJSONArray("Type").toList());
         ArrayList<String> alterRegister = new ArrayList();//keeps track of columns that have been altered
@@ -647,9 +776,9 @@ public class Server {
                //this column currently exists so verify data type
                 String currentType = currentDataTypes.get(currentIndex);
                 String currentCol = currentColNames.get(currentIndex);
-                if(!currentType.equals(expectType) && !currentType.contains(expectType)){
+                if(!Dialect.getDialect().isSameColumnType(currentType, expectType)){
                     //this means that the datatype for this column has changed so change it
-                   db.execute("ALTER TABLE "+table+" MODIFY "+currentCol+" "+expectType+"");
+                   changes.add("MODIFY "+currentCol+" "+expectType+"");
                 }
                //ALTER TABLE tablename MODIFY columnname INTEGER;
             }
@@ -663,7 +792,7 @@ public class Server {
                 //we use the after strategy
                // boolean backwards = false;
                 if(x == 0){ //this means this is the first column and its new
-                   db.execute("ALTER TABLE " + table + " ADD " + expectColName + " " + expectType + " FIRST"); 
+                   changes.add("ADD " + expectColName + " " + expectType + " FIRST");
                    alterRegister.add(expectColName);
                 }
                 else {
@@ -675,7 +804,7 @@ public class Server {
                         //incase this value is in current columns or we have already added it to the columns
                         if ((prevIndex > -1 || alterRegister.contains(prevColName)) && prevIndex < x) {
                             //this value is the first column directly before
-                            db.execute("ALTER TABLE " + table + " ADD " + expectColName + " " + expectType + " AFTER " + prevColName + "");
+                            changes.add("ADD " + expectColName + " " + expectType + " AFTER " + prevColName + "");
                             alterRegister.add(expectColName);
                             break;
                         }
@@ -693,15 +822,84 @@ public class Server {
             if(index == -1){
                 //delete this column because it has been removed
                 //ALTER TABLE tablename DROP COLUMN columnname;
-                db.execute("ALTER TABLE " + table + " DROP COLUMN " +currentColName);
+                changes.add("DROP COLUMN " +currentColName);
             }
             
         }
         //do the column alterations first
         //["TRAN_FLAG TEXT","NARRATION TEXT"]
         //["TRAN_FLAG TEXT","TRAN_TYPE TINYINT","NARRATION TEXT"]
+        return changes;
     }
     
+    /**
+     * returns the changes that create the indexes declared in a model that are
+     * missing from the table and drop the ones we created earlier that are no
+     * longer declared, an index whose columns or uniqueness changed is dropped
+     * and created again. Only indexes named IDX_... are managed, the primary
+     * key and indexes created by hand are left alone
+     */
+    private Map<String, List<String>> resolveIndexChanges(Database db, String table, String[] indexes) {
+        //what we want, keyed by index name
+        HashMap<String, String> expected = new HashMap<>();
+        for (String index : indexes) {
+            String definition = index.trim().replaceAll("\\s+", " ").toUpperCase();
+            boolean unique = definition.startsWith("UNIQUE ");
+            String columns = (unique ? definition.substring(7) : definition).replaceAll("\\s*,\\s*", ",").trim();
+            if (!Dialect.getDialect().supportsIndexPrefixes()) {
+                columns = columns.replaceAll("\\(\\d+\\)", "");
+            }
+            expected.put(indexName(columns), (unique ? "UNIQUE " : "") + columns);
+        }
+        //what we have, rebuilt in the same form from SHOW INDEX
+        JSONObject indexData = Dialect.getDialect().describeIndexes(db, table);
+        JSONArray keyNames = indexData.optJSONArray("Key_name");
+        HashMap<String, String> current = new HashMap<>();
+        for (int x = 0; keyNames != null && x < keyNames.length(); x++) {
+            String name = keyNames.optString(x).toUpperCase();
+            if (!name.startsWith("IDX_")) {
+                continue;
+            }
+            String column = indexData.optJSONArray("Column_name").optString(x).toUpperCase();
+            String subPart = indexData.optJSONArray("Sub_part").optString(x);
+            if (subPart != null && !subPart.isEmpty() && !subPart.equals("null")) {
+                column = column + "(" + subPart + ")";
+            }
+            String unique = indexData.optJSONArray("Non_unique").optString(x).equals("0") ? "UNIQUE " : "";
+            String columns = current.get(name);
+            //SHOW INDEX lists the columns of an index in order
+            current.put(name, columns == null ? unique + column : columns + "," + column);
+        }
+        //the changes keyed by index name, an index that changed is dropped and added together
+        LinkedHashMap<String, List<String>> changes = new LinkedHashMap<>();
+        for (String name : current.keySet()) {
+            if (!current.get(name).equals(expected.get(name))) {
+                changes.put(name, new ArrayList<>(Arrays.asList("DROP INDEX " + name)));
+            }
+        }
+        for (String name : expected.keySet()) {
+            String definition = expected.get(name);
+            if (!definition.equals(current.get(name))) {
+                boolean unique = definition.startsWith("UNIQUE ");
+                String columns = unique ? definition.substring(7) : definition;
+                if (!changes.containsKey(name)) {
+                    changes.put(name, new ArrayList<String>());
+                }
+                changes.get(name).add("ADD " + (unique ? "UNIQUE " : "") + "INDEX " + name + " (" + columns + ")");
+            }
+        }
+        return changes;
+    }
+
+    /*
+     * IDX_ followed by the columns without their prefix lengths, cut to the
+     * 64 characters mysql allows
+     */
+    private static String indexName(String columns) {
+        String name = "IDX_" + columns.replaceAll("\\(\\d+\\)", "").replace(",", "_");
+        return name.length() > 64 ? name.substring(0, 64) : name;
+    }
+
     private List listToUpperCase(List<String> list) {
         ArrayList newList = new ArrayList();
         for (String list1 : list) {
@@ -733,6 +931,7 @@ public class Server {
             Object newInstance = serviceClass.newInstance();
             runtimeServices.put(serviceLocation, newInstance);
             registerMethods(serviceClass);
+            buildRoutes(); //a service started after the others
             String initType = config.getInitParameter("init-type");
             if (initType.equals("initial")) {
                 initServiceModel(serviceClass); //check config first
@@ -752,22 +951,21 @@ public class Server {
     private void registerMethods(Class serviceClass) {
         // io.out("Registering methods for service: " + serviceClass.getName());
         try {
+            HashMap<String, Method> endpoints = new HashMap<>();
             Method[] methods = serviceClass.getDeclaredMethods();
             for (int i = 0; i < methods.length; i++) {
                 Endpoint endpoint = methods[i].getAnnotation(Endpoint.class);
                 if (endpoint != null) {
                     //Logger.toConsole(methods[i].getName(), Server.class);
                     String message = endpoint.name();
-                    String key = message + "_" + serviceClass.getName();
-                    serviceRegistry.put(key, methods[i]);
+                    endpoints.put(message, methods[i]);
                     String[] shareWith = endpoint.shareMethodWith();
                     for (int x = 0; x < shareWith.length; x++) {
-                        String shareKey = message + "_" + shareWith[x];  //all_fields_mark_service
-                        sharedRegistry.put(shareKey, new Object[]{message, serviceClass.getName()});
-                        //System.out.println("share_key: " + shareKey + "  share_data : " + Arrays.toString(new Object[]{message, serviceClass}));
+                        shareRegistry.add(new String[]{shareWith[x], message, serviceClass.getName()});
                     }
                 }
             }
+            endpointRegistry.put(serviceClass.getName(), endpoints);
         } catch (Exception e) {
             io.out(e);
         }
@@ -820,14 +1018,12 @@ public class Server {
         try {
             HashMap serviceList = this.services;
             String service = worker.getService();
+            QueryStats.setEndpoint(service + "/" + worker.getMessage());
             ArrayList values = (ArrayList) serviceList.get(service);
             if (values != null) {
                 try {
-                    String location = (String) values.get(0);
-                    //TODO make more service instances available in future
-                    Object serviceInstance = this.runtimeServices.get(location); //we have only one instance of this service
-                    Serviceable serviceProx = (Serviceable) this.proxify(serviceInstance, worker, service, location);
-                    serviceProx.service();
+                    //we have only one instance of every service, its endpoints are in the route table
+                    dispatch(worker);
                 } catch (Exception e) {
                     Logger.toConsole("An error occurred while invoking service: " + service + " Reason:" + e, Server.class);
                     e.printStackTrace();
@@ -842,6 +1038,8 @@ public class Server {
         } catch (Exception e) {
             worker.setResponseData(e);
             exceptionToClient(worker);
+        } finally {
+            QueryStats.clearEndpoint();
         }
     }
 
@@ -906,15 +1104,21 @@ public class Server {
      *
      * }, <br>
      * success : function(json){ <br>
-     * var all_streams = json.data.response[0] <br>
-     * var all_students = json.data.response[1] <br>
+     * var all_streams = json.response.mark_service_all_streams <br>
+     * var all_students = json.response.student_service_all_students <br>
      * } <br>
      * });
      * </code>
      * <br>
      * data is only sent back to the client after the last request is completed
      * if request one returns immediately but request two delays then the data
-     * will be transmitted to the client after request two completes
+     * will be transmitted to the client after request two completes. The
+     * requests run at the same time on a bounded executor whose size is set by
+     * the fan-out-threads and fan-out-queue init parameters, a request that
+     * finds the executor full is answered with service_busy. A request that
+     * has not completed within batch-timeout milliseconds, default 30000, or
+     * by the deadline of the whole request if that comes first, is cancelled
+     * and reported as timed out. The responses are keyed by service_message
      *
      * @param rootWorker
      */
@@ -948,11 +1152,148 @@ public class Server {
                 workers[x] = worker;
             }
             rootWorkers.put(rootWorker.getID(), workers);
-            for (ClientWorker theWorker : workers) {
-                processClientRequest(theWorker);
+            try {
+                //run the workers at the same time so the request takes as long as the slowest one
+                long batchDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getBatchTimeout());
+                //a batch invoked with a deadline of its own must not outlive it
+                for (long deadline : new long[]{Database.getDeadline(), rootWorker.getDeadline()}) {
+                    if (deadline != 0 && deadline - batchDeadline < 0) {
+                        batchDeadline = deadline;
+                    }
+                }
+                Future<?>[] results = new Future<?>[workers.length];
+                for (int x = 0; x < workers.length; x++) {
+                    results[x] = submitWorker(workers[x], batchDeadline);
+                }
+                JSONObject data = new JSONObject();
+                for (int x = 0; x < workers.length; x++) {
+                    JSONObject result = awaitWorker(workers[x], results[x], batchDeadline);
+                    data.put(workers[x].getService() + "_" + workers[x].getMessage(), result);
+                }
+                if (rootWorker.getPropagateResponse()) {
+                    rootWorker.toClient(data);
+                }
+            } catch (JSONException ex) {
+                io.log(ex, Level.SEVERE, Server.class);
+            } finally {
+                rootWorkers.remove(rootWorker.getID());
+            }
+        }
+
+    }
+
+    /*
+     * runs a worker of a multi service request on the fan out executor, its
+     * statements are cancelled once the batch deadline passes
+     */
+    private Future<?> submitWorker(final ClientWorker worker, final long batchDeadline) {
+        try {
+            return getFanOutExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    long previous = Database.getDeadline();
+                    Database.setDeadline(batchDeadline);
+                    try {
+                        processClientRequest(worker);
+                    } finally {
+                        Database.setDeadline(previous);
+                        Database.clearPrimaryPin();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            //fail fast instead of running the worker on the request thread after the others
+            worker.setResponseData(new ServiceBusyException(worker.getService(), "the fan out executor is full"));
+            worker.setReason("Too many requests are in progress");
+            exceptionToClient(worker);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /*
+     * waits until the batch deadline for a worker and returns its response, a
+     * worker that has not responded by then is cancelled and reported as
+     * timed out
+     */
+    private JSONObject awaitWorker(ClientWorker worker, Future<?> result, long batchDeadline) throws JSONException {
+        String failure = null;
+        try {
+            result.get(Math.max(0, batchDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            result.cancel(true);
+            failure = "The request timed out before " + worker.getService() + " " + worker.getMessage() + " responded";
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result.cancel(true);
+            failure = "The request was interrupted";
+        } catch (ExecutionException ex) {
+            failure = String.valueOf(ex.getCause());
+        }
+        JSONObject response = worker.getResult();
+        if (response != null) {
+            return response;
+        }
+        response = new JSONObject();
+        response.put("type", "exception");
+        response.put("reason", worker.getReason());
+        response.put("ex_reason", failure == null ? "No response from " + worker.getService() + " " + worker.getMessage() : failure);
+        if (failure != null && result.isCancelled()) {
+            response.put("code", RequestTimeoutException.ERROR_CODE);
+            response.put("retryable", false);
+        }
+        return response;
+    }
+
+    private long getBatchTimeout() {
+        String timeout = config == null ? null : config.getInitParameter("batch-timeout");
+        return timeout == null || timeout.trim().isEmpty() ? 30000 : Long.parseLong(timeout.trim());
+    }
+
+    /*
+     * a bounded executor shared by all multi service requests, when it is
+     * full the worker is rejected and answered with service_busy
+     */
+    private ThreadPoolExecutor getFanOutExecutor() {
+        synchronized (rootWorkers) {
+            if (fanOutExecutor == null) {
+                int threads = intParam("fan-out-threads", 16);
+                final AtomicInteger count = new AtomicInteger();
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(Math.max(1, intParam("fan-out-queue", 100))), new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "quest-fan-out-" + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        }, new ThreadPoolExecutor.AbortPolicy());
+                executor.allowCoreThreadTimeOut(true);
+                fanOutExecutor = executor;
+            }
+            return fanOutExecutor;
+        }
+    }
+
+    /**
+     * stops the threads started by this server, this is called when the
+     * servlet is destroyed
+     */
+    public void shutdown() {
+        synchronized (rootWorkers) {
+            if (fanOutExecutor != null) {
+                fanOutExecutor.shutdown();
+                fanOutExecutor = null;
             }
         }
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.shutdown();
+        }
+        bulkheads.clear();
+    }
 
+    private int intParam(String name, int fallback) {
+        String value = config == null ? null : config.getInitParameter(name);
+        return value == null || value.trim().isEmpty() ? fallback : Integer.parseInt(value.trim());
     }
 
     /**
@@ -987,33 +1328,40 @@ public class Server {
      * @param clientID the id of the client we are serving
      * @param props the properties object sent by the client
      */
-    private void createSession(ClientWorker worker, User user,Database db) {
+    private void createSession(ClientWorker worker, User user, final Database db) {
         HttpSession ses = worker.getSession();
         JSONObject props = worker.getRequestData();
-        String uName = user.getUserProperty("USER_NAME");
+        final String uName = user.getUserProperty("USER_NAME");
         sessions.put(ses.getId(), ses);
         String uHost = (String) props.optString("host");
-        String clientIP = (String) props.optString("clientip");
+        final String clientIP = props.optString("clientip");
         ses.setAttribute("username", uName);
         ses.setAttribute("host", uHost);
         ses.setAttribute("clientip", clientIP);
         try {
             JSONArray userPrivileges = user.getUserPrivileges();
-            String userId = user.getUserProperty("USER_ID");
+            final String userId = user.getUserProperty("USER_ID");
             Date sessionStart = new Date();
-            ses.setAttribute("privileges", userPrivileges);
+            //sessions of users with the same privileges share one interned set
+            ses.setAttribute("privileges", PrivilegeSet.of(userPrivileges));
             ses.setAttribute("userid", userId);
             ses.setAttribute("created", user.getUserProperty("CREATED"));
             ses.setAttribute("group", user.getUserProperty("GROUPS"));
             ses.setAttribute("lastlogin", user.getUserProperty("LAST_LOGIN"));
             ses.setAttribute("sessionstart", sessionStart);
             UniqueRandom ur = new UniqueRandom(30);
-            String loginID = ur.nextMixedRandom();
+            final String loginID = ur.nextMixedRandom();
             ses.setAttribute("loginid", loginID);
-            String serverIP = InetAddress.getLocalHost().getHostAddress();
-            String serverHost = InetAddress.getLocalHost().getHostName();
-            db.query("INSERT INTO LOGIN VALUES(?,?,NOW(),?,?,?)", loginID, uName, serverIP, serverHost, clientIP);
-            db.execute("UPDATE USERS SET LAST_LOGIN='" + loginID + "' WHERE USER_ID='" + userId + "'");
+            final String serverIP = InetAddress.getLocalHost().getHostAddress();
+            final String serverHost = InetAddress.getLocalHost().getHostName();
+            db.inTransaction(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction() {
+                    db.query("INSERT INTO LOGIN VALUES(?,?,NOW(),?,?,?)", loginID, uName, serverIP, serverHost, clientIP);
+                    db.setValue("USERS", "LAST_LOGIN", loginID, "USER_ID", userId);
+                    return null;
+                }
+            });
             Logger.toConsole("User " + uName + " successfully logged in", Server.class);
         } catch (Exception ex) {
             Logger.toConsole(ex, Server.class);
@@ -1112,7 +1460,7 @@ public class Server {
                 messageToClient(worker);
                 return false;
             }
-            else if (isPasswordExpired(Long.parseLong(user.getUserProperty("IS_PASSWORD_EXPIRED")))) {
+            else if (isPasswordExpired(user.getLongProperty("IS_PASSWORD_EXPIRED"))) {
                 Logger.toConsole("User password is expired : " + userName, Server.class);
                 worker.setResponseData("changepass");
                 messageToClient(worker);
@@ -1223,32 +1571,41 @@ public class Server {
                 //do nothing because we shouldnt propagate
             } else {
                 /*
-                 * the strategy is to check which workers have their response data as null
-                 * if any worker still has no response data, keep waiting, otherwise bundle up
-                 * the response and send it
+                 * this worker is part of a multi service request, keep its response,
+                 * invokeMultipleServices() sends the responses of all the workers together
                  */
-                JSONObject data = new JSONObject();
-                boolean complete = false;
-                ClientWorker[] workers = rootWorkers.get(rootWorkerId);
-                for (ClientWorker theWorker : workers) {
-                    complete = theWorker.getResponseData() != null;
-                    JSONObject object = new JSONObject();
-                    object.put("data", theWorker.getResponseData());
-                    object.put("reason", theWorker.getReason());
-                    data.put(theWorker.getService() + "_" + theWorker.getMessage(), object);
-                }
-                if (complete && worker.getPropagateResponse()) {
-                    worker.toClient(data); //propagate response because we have been asked to do it
-                    rootWorkers.remove(rootWorkerId);
-                } else if (complete && !worker.getPropagateResponse()) {
-                    rootWorkers.remove(rootWorkerId);
-                }
+                JSONObject object = new JSONObject();
+                object.put("data", worker.getResponseData());
+                object.put("reason", worker.getReason());
+                worker.setResult(object);
             }
         } catch (JSONException ex) {
             io.log(ex, Level.SEVERE, Server.class);
         }
     }
 
+    /*
+     * adds the code of a failure the client can act on, a busy database can
+     * be retried while a request that timed out was cancelled
+     */
+    private static void putErrorCode(JSONObject object, Throwable obj) throws JSONException {
+        DatabaseBusyException busy = DatabaseBusyException.find(obj);
+        RequestTimeoutException timeout = RequestTimeoutException.find(obj);
+        if (busy != null) {
+            object.put("code", DatabaseBusyException.ERROR_CODE);
+            object.put("retryable", true);
+            object.put("ex_reason", busy.getMessage());
+        } else if (timeout != null) {
+            object.put("code", RequestTimeoutException.ERROR_CODE);
+            object.put("retryable", false);
+            object.put("ex_reason", timeout.getMessage());
+        } else if (ServiceBusyException.find(obj) != null) {
+            object.put("code", ServiceBusyException.ERROR_CODE);
+            object.put("retryable", true);
+            object.put("ex_reason", obj.getMessage());
+        }
+    }
+
     public void exceptionToClient(ClientWorker worker) {
         try {
             Throwable obj = (Throwable) worker.getResponseData();
@@ -1259,33 +1616,19 @@ public class Server {
                 object.put("reason", worker.getReason());
                 object.put("type", "exception");
                 object.put("ex_reason", obj.getMessage());
+                putErrorCode(object, obj);
                 worker.toClient(object);
             } else if (rootWorkerId == null) {
                 //do nothing  
             } else {
-                /*
-                 * the strategy is to check which workers have their response data as null
-                 * if any worker still has no response data, keep waiting, otherwise bundle up
-                 * the response and send it
-                 */
-                JSONObject data = new JSONObject();
-                boolean complete = false;
-                ClientWorker[] workers = rootWorkers.get(rootWorkerId);
-                for (ClientWorker theWorker : workers) {
-                    complete = theWorker.getResponseData() != null;
-                    JSONObject object = new JSONObject();
-                    object.put("exception", obj);
-                    object.put("reason", theWorker.getReason());
-                    object.put("type", "exception");
-                    object.put("ex_reason", obj.getMessage());
-                    data.put(theWorker.getService() + "_" + theWorker.getMessage(), object);
-                }
-                if (complete && worker.getPropagateResponse()) {
-                    worker.toClient(data);
-                    rootWorkers.remove(rootWorkerId);
-                } else if (complete && !worker.getPropagateResponse()) {
-                    rootWorkers.remove(rootWorkerId);
-                }
+                //part of a multi service request, sent by invokeMultipleServices()
+                JSONObject object = new JSONObject();
+                object.put("exception", obj);
+                object.put("reason", worker.getReason());
+                object.put("type", "exception");
+                object.put("ex_reason", obj.getMessage());
+                putErrorCode(object, obj);
+                worker.setResult(object);
             }
         } catch (JSONException ex) {
             io.log(ex, Level.SEVERE, Server.class);
@@ -1303,7 +1646,7 @@ public class Server {
             String userName = (String) session.getAttribute("username");
             String clientIP = (String) session.getAttribute("clientip");
             String logoutID = (String) session.getAttribute("loginid");
-            db.setValue("USERS", "IS_LOGGED_IN", "0", "USER_NAME='" + userName + "'");
+            db.setValue("USERS", "IS_LOGGED_IN", "0", "USER_NAME", userName);
             if (logoutID == null) {
                 return;
             }
@@ -1317,107 +1660,221 @@ public class Server {
         }
     }
 
-    /**
-     * this method is used to get an object that has been proxied, to control
-     * access to that object by checking whether a user has access to the
-     * specified permanent privilege, access to the returned object is
-     * controlled by the proxy class that implements the interface wrapped in
-     * the resource object
-     *
-     * @param obj the object we want to have proxy control to
-     * @param res the resource object containing the wrapped interface to be
-     * implemented by the dynamic proxy class
-     * @param clientID the current client
-     * @param priv the privilege we want to control to
-     * @return the object whose access is controlled through a proxy
+    /*
+     * an endpoint compiled into a method handle bound to its service instance
+     * with the type (Server, ClientWorker)void, the value an endpoint returns
+     * is not used
      */
-    public Object proxify(Object obj, ClientWorker worker, String priv, String clazz) {
-        ClassLoader cl = obj.getClass().getClassLoader();
-        return Proxy.newProxyInstance(cl, new Class[]{Serviceable.class}, new PrivilegeHandler(obj, this, worker, priv, clazz));
-    }
+    private static final class Route {
 
-    /**
-     * this class controls access to a server's privileged services or methods
-     * it uses java.lang.reflect.Proxy class for dynamic proxies
-     */
-    private class PrivilegeHandler implements InvocationHandler, java.io.Serializable {
+        private final MethodHandle handle;
+
+        private final String serviceClass;
+
+        private final String methodName;
+
+        private final boolean shared;
 
-        private Object obj;
-        private String priv;
-        private String clazz;
-        private ClientWorker worker;
+        private final long timeout;
 
-        public PrivilegeHandler(Object obj, Server serv, ClientWorker worker, String priv, String clazz) {
-            this.obj = obj;
-            this.worker = worker;
-            this.priv = priv;
-            this.clazz = clazz;
+        Route(MethodHandle handle, Object instance, Method method, boolean shared) {
+            this.handle = handle;
+            this.serviceClass = instance.getClass().getSimpleName();
+            this.methodName = method.getName();
+            this.shared = shared;
+            this.timeout = method.getAnnotation(Endpoint.class).timeout();
         }
+    }
 
-        private Object[] getSharedData() {
-            String serviceName = worker.getService(); //mark_service
-            String message = worker.getMessage();  //all_fields
-            String key = message + "_" + serviceName;
-            Object[] data = sharedRegistry.get(key);
-            if (data == null) {
-                return null;
+    /*
+     * compiles the registered endpoints of every started service into the
+     * route table, methods shared with a service through shareMethodWith are
+     * routed under that service unless it has an endpoint of the same name
+     */
+    private void buildRoutes() {
+        HashMap<String, ArrayList> serviceMap = Server.services;
+        if (serviceMap == null) {
+            return;
+        }
+        HashMap<String, String> locations = new HashMap<>();
+        HashMap<String, HashMap<String, Route>> table = new HashMap<>();
+        for (String serviceName : serviceMap.keySet()) {
+            String location = (String) serviceMap.get(serviceName).get(0);
+            locations.put(serviceName, location);
+            table.put(serviceName, new HashMap<String, Route>());
+        }
+        for (String serviceName : table.keySet()) {
+            String location = locations.get(serviceName);
+            Object instance = runtimeServices.get(location);
+            Map<String, Method> methods = endpointRegistry.get(location);
+            if (instance == null || methods == null) {
+                continue;
+            }
+            for (Map.Entry<String, Method> entry : methods.entrySet()) {
+                Route route = compileRoute(instance, entry.getValue(), false);
+                if (route != null) {
+                    table.get(serviceName).put(entry.getKey(), route);
+                }
             }
-            String methodKey = data[0] + "_" + data[1];
-            Method method = serviceRegistry.get(methodKey);
-            Object[] shareData = new Object[]{data[0], data[1], method}; // messagename, service instance,method
-            return shareData;
         }
+        for (String[] share : shareRegistry) {
+            //shareWith service, message, class of the method
+            HashMap<String, Route> messages = table.get(share[0]);
+            Object instance = runtimeServices.get(share[2]);
+            Map<String, Method> methods = endpointRegistry.get(share[2]);
+            if (messages == null || instance == null || methods == null || messages.containsKey(share[1])) {
+                continue;
+            }
+            Route route = compileRoute(instance, methods.get(share[1]), true);
+            if (route != null) {
+                messages.put(share[1], route);
+            }
+        }
+        HashMap<String, Map<String, Route>> frozen = new HashMap<>();
+        for (String serviceName : table.keySet()) {
+            frozen.put(serviceName, Collections.unmodifiableMap(table.get(serviceName)));
+        }
+        routes = Collections.unmodifiableMap(frozen);
+    }
 
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            boolean permContains = false;
-            Object[] sharedData;
-            String uName;
-            String privState = Server.services.get(worker.getService()).get(2).toString();
-                if (privState.equals("yes")) {
-                    HttpSession ses = worker.getSession();
-                    uName = (String) ses.getAttribute("username");
-                    JSONArray privileges = (JSONArray) ses.getAttribute("privileges");
-                    permContains = privileges != null && privileges.toList().contains(this.priv); 
-
-                } else {
-                    uName = "anonymous";
-                }
+    private static Route compileRoute(Object instance, Method method, boolean shared) {
+        if (method == null) {
+            return null;
+        }
+        try {
+            method.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(method).bindTo(instance)
+                    .asType(MethodType.methodType(void.class, Server.class, ClientWorker.class));
+            return new Route(handle, instance, method, shared);
+        } catch (Exception ex) {
+            Logger.toConsole("Endpoint " + method + " can not be routed: " + ex, Server.class);
+            return null;
+        }
+    }
 
-                sharedData = getSharedData();
-           
-            if (permContains || privState.equals("no")) {
-                try {
-                    Method met = serviceRegistry.get(worker.getMessage() + "_" + clazz);
-                    if(met != null) { //this is the first attempt
-                        io.log("[" + uName + "] Service invoked: " + obj.getClass().getSimpleName() + " Method: " + met.getName(), Level.SEVERE, Server.class);
-                        return met.invoke(obj, new Object[]{Server.this, worker});
-                    }
-                    else { //this is a shared method
-                        if(sharedData != null) {
-                            Object serviceInstance = runtimeServices.get(sharedData[1].toString());
-                            Method sharedMethod = (Method) sharedData[2];
-                            Logger.toConsole(" [" + uName + "] Service invoked: " + serviceInstance.getClass().getSimpleName() + " Shared Method: " + sharedMethod.getName(), Server.class);
-                            return sharedMethod.invoke(serviceInstance, new Object[]{Server.this, worker});
-                        }
-                        else {
-                            worker.setResponseData("The specified message "+worker.getMessage()+"" +
-                                    " does not exist for service "+worker.getService());
-                            messageToClient(worker);
-                        }
-                    }
-                    // if this fails check to see if there is a service that has shared this method with the currently invoked service
-                } catch (Exception e) {
-                    if (Server.this.debugmode) e.getCause().printStackTrace();
-                }
+    /*
+     * checks the privileges of the user and invokes the endpoint the worker is
+     * for, this is one lookup in the route table and a direct call
+     */
+    private void dispatch(ClientWorker worker) {
+        String uName;
+        boolean permContains = false;
+        String service = worker.getService();
+        String privState = Server.services.get(service).get(2).toString();
+        if (privState.equals("yes")) {
+            HttpSession ses = worker.getSession();
+            uName = (String) ses.getAttribute("username");
+            PrivilegeSet privileges = PrivilegeSet.fromSession(ses);
+            permContains = privileges != null && privileges.contains(service);
+        } else {
+            uName = "anonymous";
+        }
+        if (!permContains && !privState.equals("no")) {
+            worker.setResponseData("No privileges found for user : " + uName);
+            messageToClient(worker);
+            return;
+        }
+        Map<String, Route> messages = routes.get(service);
+        Route route = messages == null ? null : messages.get(worker.getMessage());
+        if (route == null) {
+            worker.setResponseData("The specified message " + worker.getMessage() + ""
+                    + " does not exist for service " + worker.getService());
+            messageToClient(worker);
+            return;
+        }
+        try {
+            if (route.shared) {
+                Logger.toConsole(" [" + uName + "] Service invoked: " + route.serviceClass + " Shared Method: " + route.methodName, Server.class);
+            } else {
+                io.log("[" + uName + "] Service invoked: " + route.serviceClass + " Method: " + route.methodName, Level.SEVERE, Server.class);
             }
-            else {
-                worker.setResponseData("No privileges found for user : "+uName);
-                messageToClient(worker);
+            Bulkhead bulkhead = bulkheads.get(service);
+            if (bulkhead == null || Bulkhead.isBulkheadThread() || Database.isTransactionBound()) {
+                invokeRoute(route, worker);
+            } else {
+                invokeOnBulkhead(bulkhead, route, worker);
             }
-     
-            return null;
+        } catch (Throwable e) {
+            if (this.debugmode) e.printStackTrace();
+            //timeouts, busy databases and busy services are reported even when the service did not handle them
+            Throwable failure = RequestTimeoutException.find(e);
+            failure = failure == null ? DatabaseBusyException.find(e) : failure;
+            failure = failure == null ? ServiceBusyException.find(e) : failure;
+            if (failure != null) {
+                worker.setResponseData(failure);
+                worker.setReason(failure.getMessage());
+                exceptionToClient(worker);
+            }
+        }
+    }
+
+    /*
+     * invokes an endpoint on the bulkhead of its service, the calling thread
+     * waits for it so the request is answered in the same order as before
+     */
+    private void invokeOnBulkhead(Bulkhead bulkhead, final Route route, final ClientWorker worker) throws Throwable {
+        long deadline = deadlineOf(route, worker); //the waiting thread needs it before the endpoint starts
+        try {
+            bulkhead.call(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        invokeRoute(route, worker);
+                        return null;
+                    } catch (Exception | Error ex) {
+                        throw ex;
+                    } catch (Throwable ex) {
+                        throw new ExecutionException(ex);
+                    }
+                }
+            }, worker.getService() + "/" + worker.getMessage(), deadline);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() == null ? ex : ex.getCause();
+        }
+    }
+
+    /**
+     * returns the state of the bulkhead of every service that has one keyed by
+     * service name, this includes the busy threads, the queued requests, the
+     * rejected requests and how long requests waited for a thread
+     */
+    public JSONObject getBulkheadStatistics() {
+        HashMap<String, Object> stats = new HashMap<>();
+        for (Map.Entry<String, Bulkhead> entry : bulkheads.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        return new JSONObject(stats);
+    }
+
+    /*
+     * invokes an endpoint with the deadline of the request bound to the
+     * thread so that every statement it executes is cancelled once the
+     * timeout of the endpoint is up
+     */
+    private void invokeRoute(Route route, ClientWorker worker) throws Throwable {
+        long previous = Database.getDeadline();
+        Database.setDeadline(deadlineOf(route, worker));
+        try {
+            route.handle.invokeExact(this, worker);
+        } finally {
+            Database.setDeadline(previous);
+        }
+    }
+
+    /*
+     * applies the timeout of the endpoint, or else request-timeout, to the
+     * worker and returns the sooner of its deadline and the deadline of the
+     * calling thread, which is set when a service is invoked by another
+     * service or a batch
+     */
+    private long deadlineOf(Route route, ClientWorker worker) {
+        worker.setTimeout(route.timeout < 0 ? requestTimeout : route.timeout);
+        long previous = Database.getDeadline();
+        long end = worker.getDeadline();
+        if (previous != 0 && (end == 0 || previous - end < 0)) {
+            end = previous;
         }
+        return end;
     }
 
     /**
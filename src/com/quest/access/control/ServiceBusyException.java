@@ -0,0 +1,55 @@
+package com.quest.access.control;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * This file defines an exception
+ * a service busy exception is thrown when a request is rejected because every
+ * thread of the bulkhead of its service is busy and its queue is full. The
+ * request can be retried later
+ */
+/**
+ *
+ * @author connie
+ */
+public class ServiceBusyException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * the error code sent to clients for a request rejected with this
+     * exception
+     */
+    public static final String ERROR_CODE = "service_busy";
+
+    private final String service;
+
+    public ServiceBusyException(String service, String reason) {
+        super("Service " + service + " is busy, " + reason);
+        this.service = service;
+    }
+
+    /**
+     * @return the name of the service that rejected the request
+     */
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * returns the service busy exception in the causes of the given
+     * throwable, services often wrap it
+     *
+     * @param ex the throwable
+     * @return the exception or null if it was not caused by one
+     */
+    public static ServiceBusyException find(Throwable ex) {
+        for (int x = 0; ex != null && x < 10; x++) {
+            if (ex instanceof ServiceBusyException) {
+                return (ServiceBusyException) ex;
+            }
+            ex = ex.getCause();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,206 @@
+package com.quest.access.useraccess;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.http.HttpSession;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * This file defines the privileges of a logged in user, the privileges are
+ * resolved once when the user logs in into a bit set over a dictionary of all
+ * the privilege names seen by the server. A privilege set is immutable and
+ * interned so every session whose user has the same privileges e.g. all the
+ * cashiers of a business shares one instance, checking a privilege is a lookup
+ * in the dictionary and a bit test. The bits depend on the order names were
+ * seen by this server so a set is serialized by its names, a session that is
+ * persisted or replicated gets the set of the same names in the server that
+ * restores it
+ *
+ * @author connie
+ */
+public final class PrivilegeSet implements Serializable {
+
+    /*
+     * a set is written as its names by writeReplace(), the uid is pinned
+     * anyway so it does not depend on the compiler
+     */
+    private static final long serialVersionUID = 1L;
+
+    /*
+     * the bit of every privilege name, bits are never reused
+     */
+    private static final ConcurrentHashMap<String, Integer> DICTIONARY = new ConcurrentHashMap<>();
+
+    private static final List<String> NAMES = new ArrayList<>();
+
+    private static final ConcurrentHashMap<PrivilegeSet, PrivilegeSet> INTERNED = new ConcurrentHashMap<>();
+
+    /**
+     * the set of a user without privileges
+     */
+    public static final PrivilegeSet EMPTY = intern(new PrivilegeSet(new long[0]));
+
+    private final long[] bits;
+
+    private final int hash;
+
+    private PrivilegeSet(long[] bits) {
+        this.bits = bits;
+        this.hash = Arrays.hashCode(bits);
+    }
+
+    /**
+     * returns the interned privilege set holding the given privilege names
+     *
+     * @param privileges the privilege names as returned by
+     * User.getUserPrivileges(), may be null
+     */
+    public static PrivilegeSet of(JSONArray privileges) {
+        if (privileges == null || privileges.length() == 0) {
+            return EMPTY;
+        }
+        long[] bits = new long[0];
+        for (int x = 0; x < privileges.length(); x++) {
+            String name = privileges.optString(x, null);
+            if (name == null) {
+                continue;
+            }
+            int bit = bitOf(name);
+            if (bit / 64 >= bits.length) {
+                bits = Arrays.copyOf(bits, bit / 64 + 1);
+            }
+            bits[bit / 64] |= 1L << bit;
+        }
+        return intern(new PrivilegeSet(bits));
+    }
+
+    /**
+     * returns the privileges stored in a session at login, a session created
+     * before privileges were stored as a set holds the names in a JSONArray
+     * and gets the set in its place
+     *
+     * @param ses the session of the user
+     * @return the privileges or null if the session has none
+     */
+    public static PrivilegeSet fromSession(HttpSession ses) {
+        Object privileges = ses == null ? null : ses.getAttribute("privileges");
+        if (privileges instanceof JSONArray) {
+            PrivilegeSet set = of((JSONArray) privileges);
+            ses.setAttribute("privileges", set);
+            return set;
+        }
+        return (PrivilegeSet) privileges;
+    }
+
+    /**
+     * @param privilege the name of a privilege e.g. user_service
+     * @return true if the privilege is in this set
+     */
+    public boolean contains(String privilege) {
+        if (privilege == null) {
+            return false;
+        }
+        Integer bit = DICTIONARY.get(privilege);
+        return bit != null && bit / 64 < bits.length && (bits[bit / 64] & (1L << bit)) != 0;
+    }
+
+    /**
+     * @return the number of privileges in this set
+     */
+    public int size() {
+        int size = 0;
+        for (long word : bits) {
+            size += Long.bitCount(word);
+        }
+        return size;
+    }
+
+    /**
+     * @return the privilege names in this set
+     */
+    public JSONArray toJSONArray() {
+        JSONArray names = new JSONArray();
+        synchronized (NAMES) {
+            for (int bit = 0; bit < bits.length * 64; bit++) {
+                if ((bits[bit / 64] & (1L << bit)) != 0) {
+                    names.put(NAMES.get(bit));
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof PrivilegeSet && Arrays.equals(bits, ((PrivilegeSet) obj).bits);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return toJSONArray().toString();
+    }
+
+    private Object writeReplace() {
+        return new Names(toJSONArray().toString());
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("A privilege set is serialized by its names");
+    }
+
+    /*
+     * the serialized form of a privilege set, the names as a json array
+     */
+    private static final class Names implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String names;
+
+        Names(String names) {
+            this.names = names;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return of(new JSONArray(names));
+            } catch (JSONException ex) {
+                throw new InvalidObjectException("Invalid privilege names " + names);
+            }
+        }
+    }
+
+    private static int bitOf(String name) {
+        Integer bit = DICTIONARY.get(name);
+        if (bit != null) {
+            return bit;
+        }
+        synchronized (NAMES) {
+            bit = DICTIONARY.get(name);
+            if (bit == null) {
+                bit = NAMES.size();
+                NAMES.add(name);
+                DICTIONARY.put(name, bit);
+            }
+            return bit;
+        }
+    }
+
+    private static PrivilegeSet intern(PrivilegeSet set) {
+        PrivilegeSet existing = INTERNED.putIfAbsent(set, set);
+        return existing == null ? set : existing;
+    }
+
+}
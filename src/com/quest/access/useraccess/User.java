@@ -4,9 +4,20 @@ import com.quest.access.common.Logger;
 import com.quest.access.common.UniqueRandom;
 import com.quest.access.common.io;
 import com.quest.access.common.mysql.Database;
+import com.quest.access.common.mysql.ResultTable;
+import com.quest.access.common.mysql.RowHandler;
+import com.quest.access.common.mysql.TransactionCallback;
 import com.quest.access.crypto.Security;
 import com.quest.access.useraccess.verification.Action;
 import com.quest.access.useraccess.verification.UserAction;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Level;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -44,8 +55,18 @@ import org.json.JSONObject;
  */
 public class User {
 
+    /*
+     * the page size of the paged history methods when none is given and the
+     * largest page they return
+     */
+    private static final int DEFAULT_PAGE_SIZE = 50;
+
+    private static final int MAX_PAGE_SIZE = 500;
+
     private JSONObject userProperties = new JSONObject();
 
+    private ResultTable userTable;
+
     private String userName;
     /*
      * this are the  resource groups the user has access to
@@ -143,16 +164,33 @@ public class User {
      * @param serv the server the user belongs to
      * @see #getExistingUser(java.lang.String, com.quest.access.net.Server)
      */
-    private User(String userName, Database db, JSONObject data) {
+    private User(String userName, Database db, ResultTable data) {
         this.userName = userName;
         this.database = db;
-        this.userProperties = data;
+        this.userTable = data;
+        this.userProperties = data.toJSON();
     }
 
     public JSONObject getUserProperties() {
         return this.userProperties;
     }
 
+    /**
+     * returns a numeric property of this user e.g. IS_PASSWORD_EXPIRED, the
+     * value is read from the typed row loaded from the database unless the
+     * property has been changed since, in which case it is parsed
+     *
+     * @param key the name of the property
+     * @return the value or 0 if there is no such property
+     */
+    public long getLongProperty(String key) {
+        JSONArray props = this.userProperties.optJSONArray(key);
+        if (this.userTable != null && this.userTable.isView(key, props) && props.length() > 0) {
+            return this.userTable.getLong(0, key);
+        }
+        return props == null ? 0 : props.optLong(0);
+    }
+
     public String getUserProperty(String key) {
         JSONArray props = this.userProperties.optJSONArray(key);
         if (props != null) {
@@ -175,7 +213,7 @@ public class User {
             }
         }
 
-        db.setValue("USERS", key, value, "USER_NAME='" + this.userName + "'");
+        db.setValue("USERS", key, value, "USER_NAME", this.userName);
     }
 
     /**
@@ -187,7 +225,7 @@ public class User {
         try {
             byte[] bytes = Security.makePasswordDigest("PINS_ARE_WEIRD", newPass.toCharArray());
             String passw = Security.toBase64(bytes);
-            this.database.query("UPDATE USERS SET PASS_WORD='" + passw + "' WHERE USER_NAME=?", this.userName);
+            this.database.query("UPDATE USERS SET PASS_WORD=? WHERE USER_NAME=?", passw, this.userName);
         } catch (Exception e) {
             Logger.toConsole(e, this.getClass());
         }
@@ -208,10 +246,17 @@ public class User {
      * @param userName the name of the user to be deleted
      * @param serv the server where this user was created
      */
-    public static void deleteUser(String userName, Database db) throws NonExistentUserException {
+    public static void deleteUser(String userName, final Database db) throws NonExistentUserException {
         User user = User.getExistingUser(userName, db);
-        db.query("DELETE FROM USERS WHERE USER_ID=?", user.getUserProperty("USER_ID"));
-        db.query("DELETE FROM PRIVILEGES WHERE USER_ID=?", user.getUserProperty("USER_ID"));
+        final String userId = user.getUserProperty("USER_ID");
+        db.inTransaction(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction() {
+                db.query("DELETE FROM USERS WHERE USER_ID=?", userId);
+                db.query("DELETE FROM PRIVILEGES WHERE USER_ID=?", userId);
+                return null;
+            }
+        });
     }
 
     /**
@@ -224,13 +269,111 @@ public class User {
     public static JSONObject getActionHistory(String userName, Database db, int limit) {
         JSONObject set = null;
         if (limit == 0) {
-            set = db.query("SELECT * FROM USER_ACTIONS WHERE USER_NAME=? ORDER BY ACTION_TIME DESC", userName);
+            set = streamAll(db, "SELECT * FROM USER_ACTIONS WHERE USER_NAME=? ORDER BY ACTION_TIME DESC", userName);
         } else if (limit > 0) {
             set = db.query("SELECT * FROM USER_ACTIONS WHERE USER_NAME=? ORDER BY ACTION_TIME DESC LIMIT " + limit + "", userName);
         }
         return set;
     }
 
+    /*
+     * reads the whole history of a user in the column shape of Database.query()
+     * through Database.stream(), the driver hands the rows over a few at a time
+     * instead of buffering the whole result next to the json built from it
+     */
+    private static JSONObject streamAll(Database db, String psql, String userName) {
+        final JSONObject json = new JSONObject();
+        db.stream(psql, new String[]{userName}, new RowHandler() {
+            private JSONArray[] columns;
+
+            @Override
+            public boolean handleRow(ResultSet row) throws SQLException {
+                if (columns == null) {
+                    ResultSetMetaData meta = row.getMetaData();
+                    columns = new JSONArray[meta.getColumnCount() + 1];
+                    for (int x = 1; x < columns.length; x++) {
+                        columns[x] = new JSONArray();
+                        try {
+                            json.put(meta.getColumnLabel(x), columns[x]);
+                        } catch (JSONException ex) {
+                            java.util.logging.Logger.getLogger(User.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                }
+                for (int x = 1; x < columns.length; x++) {
+                    columns[x].put(row.getString(x));
+                }
+                return true;
+            }
+        });
+        return json;
+    }
+
+    /**
+     * returns one page of a user's actions, newest first. The page continues
+     * after the action the cursor points to, so deep pages cost the same as
+     * the first one
+     *
+     * @param userName the user whose actions are returned
+     * @param db the database
+     * @param pageSize the maximum number of actions returned
+     * @param cursor the cursor returned with the previous page, or null or an
+     * empty string for the first page
+     * @return an object with the actions under "rows" and the cursor of the
+     * next page under "cursor", the cursor is empty on the last page
+     */
+    public static JSONObject getActionHistory(String userName, Database db, int pageSize, String cursor) {
+        return page(db, "USER_ACTIONS", "ACTION_TIME", "ACTION_ID", userName, pageSize, cursor);
+    }
+
+    /*
+     * keyset pagination over a log table ordered by time and then by its id,
+     * the cursor holds the time and id of the last row of the previous page
+     */
+    private static JSONObject page(Database db, String table, String timeColumn, String idColumn, String userName, int pageSize, String cursor) {
+        int size = pageSize <= 0 ? DEFAULT_PAGE_SIZE : Math.min(pageSize, MAX_PAGE_SIZE);
+        String order = " ORDER BY " + timeColumn + " DESC, " + idColumn + " DESC LIMIT " + size;
+        JSONObject rows;
+        if (cursor == null || cursor.isEmpty()) {
+            rows = db.query("SELECT * FROM " + table + " WHERE USER_NAME=?" + order, userName);
+        } else {
+            String[] key = decodeCursor(cursor);
+            rows = db.query("SELECT * FROM " + table + " WHERE USER_NAME=? AND (" + timeColumn + " < ? OR ("
+                    + timeColumn + " = ? AND " + idColumn + " < ?))" + order, userName, key[0], key[0], key[1]);
+        }
+        JSONObject page = new JSONObject();
+        try {
+            JSONArray times = rows.optJSONArray(timeColumn);
+            JSONArray ids = rows.optJSONArray(idColumn);
+            int count = times == null ? 0 : times.length();
+            // a short page is the last one
+            String next = count < size ? "" : encodeCursor(times.optString(count - 1), ids.optString(count - 1));
+            page.put("rows", rows);
+            page.put("cursor", next);
+        } catch (JSONException ex) {
+            java.util.logging.Logger.getLogger(User.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return page;
+    }
+
+    static String encodeCursor(String time, String id) {
+        String key = time + "\n" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String[] decodeCursor(String cursor) {
+        try {
+            String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int split = key.indexOf('\n');
+            if (split != -1) {
+                return new String[]{key.substring(0, split), key.substring(split + 1)};
+            }
+        } catch (IllegalArgumentException ex) {
+            // not base 64, reported below
+        }
+        throw new IllegalArgumentException("Invalid cursor " + cursor);
+    }
+
     /**
      * this method returns the privileges of a user as stored in the database
      * this method is called when a user logs in in order to determine which
@@ -256,7 +399,7 @@ public class User {
                 String passw = Security.toBase64(Security.makePasswordDigest("PINS_ARE_WEIRD", newPass.toCharArray()));
                 long time = System.currentTimeMillis();
                 
-                db.query("UPDATE USERS SET PASS_WORD='" + passw + "',IS_PASSWORD_EXPIRED='" + time + "', CHANGE_PASSWORD = '0' WHERE USER_NAME=?", userName);
+                db.query("UPDATE USERS SET PASS_WORD=?,IS_PASSWORD_EXPIRED=?, CHANGE_PASSWORD = '0' WHERE USER_NAME=?", passw, Long.toString(time), userName);
                 return true;
             } else {
                 return false;
@@ -293,13 +436,23 @@ public class User {
     public static JSONObject getLoginLog(String userName, Database db, int limit) {
         JSONObject set = null;
         if (limit == 0) {
-            set = db.query("SELECT * FROM LOGIN WHERE USER_NAME=? ORDER BY LOGIN_TIME DESC", userName);
+            set = streamAll(db, "SELECT * FROM LOGIN WHERE USER_NAME=? ORDER BY LOGIN_TIME DESC", userName);
         } else if (limit > 0) {
             set = db.query("SELECT * FROM LOGIN WHERE USER_NAME=? ORDER BY LOGIN_TIME DESC LIMIT " + limit + "", userName);
         }
         return set;
     }
 
+    /**
+     * returns one page of a user's logins, newest first
+     *
+     * @see #getActionHistory(java.lang.String,
+     * com.quest.access.common.mysql.Database, int, java.lang.String)
+     */
+    public static JSONObject getLoginLog(String userName, Database db, int pageSize, String cursor) {
+        return page(db, "LOGIN", "LOGIN_TIME", "LOGIN_ID", userName, pageSize, cursor);
+    }
+
     /**
      * this method returns the details of a user who has successfully logged out
      * of the system such details include the logout time, logout id etc. an
@@ -331,6 +484,16 @@ public class User {
         return set;
     }
 
+    /**
+     * returns one page of a user's logouts, newest first
+     *
+     * @see #getActionHistory(java.lang.String,
+     * com.quest.access.common.mysql.Database, int, java.lang.String)
+     */
+    public static JSONObject getLogoutLog(String userName, Database db, int pageSize, String cursor) {
+        return page(db, "LOGOUT", "LOGOUT_TIME", "LOGOUT_ID", userName, pageSize, cursor);
+    }
+
     /**
      * this method returns an instance of an existing user without trying to
      * recreate the user, the method gets the details of the user and creates a
@@ -342,8 +505,8 @@ public class User {
      * @throws com.quest.access.useraccess.NonExistentUserException
      */
     public static User getExistingUser(String userName, Database db) throws NonExistentUserException {
-        JSONObject data = db.query("SELECT * FROM USERS WHERE USER_NAME = ?", userName);
-        if (data.optJSONArray("USER_NAME").length() == 0) {
+        ResultTable data = db.queryTable("SELECT * FROM USERS WHERE USER_NAME = ?", userName);
+        if (data.getRowCount() == 0) {
             throw new NonExistentUserException();
         }
         // make sure the user exists 
@@ -351,11 +514,11 @@ public class User {
     }
 
     public static User getExistingUserUsingPin(String pinHash, Database db) throws NonExistentUserException {
-        JSONObject data = db.query("SELECT * FROM USERS WHERE PASS_WORD = ?", pinHash);
-        if (data.optJSONArray("USER_NAME").length() == 0) {
+        ResultTable data = db.queryTable("SELECT * FROM USERS WHERE PASS_WORD = ?", pinHash);
+        if (data.getRowCount() == 0) {
             throw new NonExistentUserException();
         }
-        String userName = data.optJSONArray("USER_NAME").optString(0);
+        String userName = data.getString(0, "USER_NAME");
         // make sure the user exists 
         return new User(userName, db, data);
     }
@@ -366,21 +529,32 @@ public class User {
      * @param privs
      */
     public void grantPrivileges(String... privs) {
+        String id = getUserProperty("USER_ID");
+        if (id == null || id.trim().isEmpty()) {
+            return;
+        }
+        // read the existing privileges once and insert the missing ones in one batch
+        JSONObject data = this.database.query("SELECT GROUP_ID FROM PRIVILEGES WHERE USER_ID=?", id);
+        JSONArray existing = data.optJSONArray("GROUP_ID");
+        HashSet<String> granted = new HashSet<>();
+        for (int x = 0; existing != null && x < existing.length(); x++) {
+            granted.add(existing.optString(x));
+        }
+        List<String[]> rows = new ArrayList<>();
         for (String privilege : privs) {
             if (privilege == null) {
                 continue;
                 // this means no such resource group exists
             }
-            JSONObject data = this.database.query("SELECT * FROM PRIVILEGES WHERE USER_ID=? AND GROUP_ID=?", this.getUserProperty("USER_ID"), privilege);
-            if (data.optJSONArray("USER_ID").length() == 0) {
+            if (granted.add(privilege)) {
                 //doesnt exist so insert
-                String id = getUserProperty("USER_ID");
-                if (!id.trim().isEmpty()) {
-                    this.database.query("INSERT INTO PRIVILEGES VALUES(?,?)", id, privilege);
-                }
-                Logger.toConsole("user privileges saved", this.getClass());
+                rows.add(new String[]{id, privilege});
             }
         }
+        if (!rows.isEmpty()) {
+            this.database.doInsertBatch("PRIVILEGES", rows);
+            Logger.toConsole("user privileges saved", this.getClass());
+        }
     }
 
     /**
@@ -390,13 +564,17 @@ public class User {
      */
     public void revokePrivileges(String... privs) {
         try {
-            for (int x = 0; x < privs.length; x++) {
-                String name = privs[x];
+            String id = getUserProperty("USER_ID");
+            List<String[]> rows = new ArrayList<>();
+            for (String name : privs) {
                 if (name == null) {
                     // this means no such privilege exists
                     continue;
                 }
-                this.database.query("DELETE FROM PRIVILEGES WHERE USER_ID=? AND GROUP_ID=? ", getUserProperty("USER_ID"), name);
+                rows.add(new String[]{id, name});
+            }
+            if (!rows.isEmpty()) {
+                this.database.executeBatch("DELETE FROM PRIVILEGES WHERE USER_ID=? AND GROUP_ID=?", rows);
                 Logger.toConsole("user privileges revoked", this.getClass());
             }
         } catch (Exception e) {
@@ -437,7 +615,7 @@ public class User {
                 throw new UserExistsException();
             }
             Long time = System.currentTimeMillis();
-            db.query("INSERT INTO USERS VALUES(?,?,?,'" + passw + "',?,NOW(),0,0,?,?,NOW(),?,?)", nextRandom, userName, userName, host, time.toString(), "0", group, action.getActionID());
+            db.query("INSERT INTO USERS VALUES(?,?,?,?,?,NOW(),0,0,?,?,NOW(),?,?)", nextRandom, userName, userName, passw, host, time.toString(), "0", group, action.getActionID());
             setUserProperty("USER_ID", nextRandom);
             setUserProperty("USER_NAME", userName);
             setUserProperty("REAL_NAME", userName);
@@ -472,7 +650,7 @@ public class User {
             byte[] bytes = Security.makePasswordDigest("PINS_ARE_WEIRD", pass.toCharArray());
             String passw = Security.toBase64(bytes);
             Long time = System.currentTimeMillis();
-            db.query("INSERT INTO USERS VALUES(?,?,?,'" + passw + "',?,NOW(),0,0,?,?,NOW(),?,?)", nextRandom, userName, userName, host, time.toString(), "0", group, action.getActionID());
+            db.query("INSERT INTO USERS VALUES(?,?,?,?,?,NOW(),0,0,?,?,NOW(),?,?)", nextRandom, userName, userName, passw, host, time.toString(), "0", group, action.getActionID());
             setUserProperty("USER_ID", nextRandom);
             setUserProperty("USER_NAME", userName);
             setUserProperty("REAL_NAME", userName);
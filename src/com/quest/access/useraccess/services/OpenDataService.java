@@ -9,7 +9,9 @@ package com.quest.access.useraccess.services;
 import com.quest.access.common.UniqueRandom;
 import com.quest.access.common.io;
 import com.quest.access.common.mysql.Database;
+import com.quest.access.common.mysql.Dialect;
 import com.quest.access.control.Server;
+import com.quest.access.useraccess.PrivilegeSet;
 import com.quest.access.useraccess.Serviceable;
 import com.quest.access.useraccess.User;
 import com.quest.access.useraccess.UserExistsException;
@@ -20,8 +22,11 @@ import com.quest.access.useraccess.services.annotations.WebService;
 import com.quest.servlets.ClientWorker;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.json.JSONArray;
@@ -44,9 +49,10 @@ import org.json.JSONObject;
     @Model(
             database = "user_server", table = "CONF_DATA",
             columns = {
-                "CONF_KEY TEXT",
+                "CONF_KEY VARCHAR(191)",
                 "CONF_VALUE TEXT"
-            })
+            },
+            indexes = {"UNIQUE CONF_KEY"})
 
 }
 )
@@ -54,6 +60,12 @@ public class OpenDataService implements Serviceable {
     
     private static JSONObject busSettings;
 
+    /*
+     * true once CONF_DATA is known to have a unique index over the whole of
+     * CONF_KEY, until then settings are saved without the upsert
+     */
+    private static volatile boolean keyIndexed;
+
     private static final String USER_DATA = "user_server";
 
     
@@ -70,7 +82,7 @@ public class OpenDataService implements Serviceable {
     @Endpoint(name = "fetch_settings")
     public void fetchSettings(Server serv, ClientWorker worker) {
         Database db = new Database(USER_DATA);
-        JSONObject data = db.query("SELECT * FROM CONF_DATA");
+        JSONObject data = db.queryCached("SELECT * FROM CONF_DATA");
         worker.setResponseData(data);
         serv.messageToClient(worker);
     }
@@ -79,21 +91,17 @@ public class OpenDataService implements Serviceable {
     public void saveSettings(Server serv, ClientWorker worker) {
         Database db = new Database(USER_DATA);
         JSONObject request = worker.getRequestData();
+        //write all settings in one upsert batch
+        HashMap<String, String> settings = new HashMap<>();
         Iterator iter = request.keys();
         while (iter.hasNext()) {
             String key = iter.next().toString();
-            String value = request.optString(key);
-            //check that the key exists
-            boolean exists = db.ifValueExists(key, "CONF_DATA", "CONF_KEY");
-            if (exists) {
-                db.query()
-                        .update("CONF_DATA")
-                        .set("CONF_VALUE='" + value + "'")
-                        .where("CONF_KEY='" + key + "'")
-                        .execute();
-            } else {
-                db.doInsert("CONF_DATA", new String[]{key, value});
-            }
+            settings.put(key, request.optString(key));
+        }
+        if (isKeyIndexed(db)) {
+            db.upsertAll("CONF_DATA", "CONF_KEY", "CONF_VALUE", settings);
+        } else {
+            saveEach(db, settings);
         }
         
         busSettings = db.query("SELECT * FROM CONF_DATA");
@@ -103,13 +111,68 @@ public class OpenDataService implements Serviceable {
 
 
 
+    /*
+     * the upsert relies on a unique index over the whole key, a table created
+     * before the index was declared gets it only on an initial start and a
+     * prefix index would make long keys with the same prefix overwrite each
+     * other
+     */
+    private static boolean isKeyIndexed(Database db) {
+        if (keyIndexed) {
+            return true;
+        }
+        JSONObject indexes = Dialect.getDialect().describeIndexes(db, "CONF_DATA");
+        JSONArray names = indexes.optJSONArray("Key_name");
+        HashMap<String, Integer> columns = new HashMap<>();
+        HashSet<String> candidates = new HashSet<>();
+        for (int x = 0; names != null && x < names.length(); x++) {
+            String name = names.optString(x);
+            Integer count = columns.get(name);
+            columns.put(name, count == null ? 1 : count + 1);
+            String subPart = indexes.optJSONArray("Sub_part").optString(x);
+            if (indexes.optJSONArray("Column_name").optString(x).equalsIgnoreCase("CONF_KEY")
+                    && indexes.optJSONArray("Non_unique").optString(x).equals("0")
+                    && (subPart.isEmpty() || subPart.equals("null"))) {
+                candidates.add(name);
+            }
+        }
+        for (String name : candidates) {
+            if (columns.get(name) == 1) {
+                keyIndexed = true;
+            }
+        }
+        return keyIndexed;
+    }
+
+    /*
+     * saves the settings by updating the keys that exist and inserting the
+     * others, used while CONF_DATA has no unique index on CONF_KEY
+     */
+    private static void saveEach(Database db, Map<String, String> settings) {
+        JSONArray keys = db.query("SELECT CONF_KEY FROM CONF_DATA").optJSONArray("CONF_KEY");
+        HashSet<String> existing = new HashSet<>();
+        for (int x = 0; keys != null && x < keys.length(); x++) {
+            existing.add(keys.optString(x));
+        }
+        ArrayList<String[]> updates = new ArrayList<>();
+        ArrayList<String[]> inserts = new ArrayList<>();
+        for (Map.Entry<String, String> entry : settings.entrySet()) {
+            if (existing.contains(entry.getKey())) {
+                updates.add(new String[]{entry.getValue(), entry.getKey()});
+            } else {
+                inserts.add(new String[]{entry.getKey(), entry.getValue()});
+            }
+        }
+        Database.executeBatch("UPDATE CONF_DATA SET CONF_VALUE=? WHERE CONF_KEY=?", db, updates);
+        Database.executeBatch("INSERT INTO CONF_DATA (CONF_KEY, CONF_VALUE) VALUES (?, ?)", db, inserts);
+    }
+
     private boolean hasPrivilege(String privilege, ClientWorker worker) {
-        JSONArray privs = (JSONArray) worker.getSession().getAttribute("privileges");
-        io.out("privileges : " + privs);
+        PrivilegeSet privs = PrivilegeSet.fromSession(worker.getSession());
         if (privs == null) {
             return false;
         }
-        return privs.toList().contains(privilege);
+        return privs.contains(privilege);
     }
 
     private void createLocalAccount(Server serv, ClientWorker worker) {
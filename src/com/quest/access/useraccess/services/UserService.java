@@ -4,6 +4,7 @@ import com.quest.access.common.UniqueRandom;
 import com.quest.access.useraccess.services.annotations.Endpoint;
 import com.quest.access.useraccess.services.annotations.WebService;
 import com.quest.access.common.mysql.Database;
+import com.quest.access.common.mysql.TransactionCallback;
 import com.quest.access.control.Server;
 import com.quest.access.useraccess.*;
 import com.quest.access.useraccess.services.annotations.Model;
@@ -11,7 +12,10 @@ import com.quest.access.useraccess.services.annotations.Models;
 import com.quest.access.useraccess.verification.*;
 import com.quest.servlets.ClientWorker;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import javax.servlet.http.HttpSession;
 import org.json.JSONArray;
@@ -104,7 +108,8 @@ import org.json.JSONObject;
             columns = {
                 "USER_ID VARCHAR(20)",
                 "GROUP_ID VARCHAR(256)"
-            }
+            },
+            indexes = {"USER_ID"}
     ),
     @Model(
             database = "user_server", table = "USERS",
@@ -121,7 +126,8 @@ import org.json.JSONObject;
                 "CREATED DATETIME",
                 "GROUPS VARCHAR(256)",
                 "ACTION_ID VARCHAR(512)"
-            }
+            },
+            indexes = {"USER_NAME(191)", "PASS_WORD(191)"}
     ),
 
     @Model(
@@ -132,7 +138,8 @@ import org.json.JSONObject;
                 "SERVER_IP VARCHAR(20)",
                 "SERVER_HOST VARCHAR(20)",
                 "CLIENT_IP VARCHAR(20)"
-            }
+            },
+            indexes = {"USER_NAME(191), LOGIN_TIME"}
     ),
     @Model(
             database = "user_server", table = "LOGOUT",
@@ -142,7 +149,8 @@ import org.json.JSONObject;
                 "SERVER_IP VARCHAR(20)",
                 "SERVER_HOST VARCHAR(20)",
                 "CLIENT_IP VARCHAR(20)"
-            }
+            },
+            indexes = {"USER_NAME(191), LOGOUT_TIME"}
     ),
     @Model(
             database = "user_server", table = "USER_ACTIONS",
@@ -151,7 +159,8 @@ import org.json.JSONObject;
                 "USER_NAME VARCHAR(256)",
                 "ACTION_TIME DATETIME",
                 "ACTION_DESCRIPTION VARCHAR(256)"
-            }
+            },
+            indexes = {"USER_NAME(191), ACTION_TIME"}
     )
 
 }
@@ -161,32 +170,43 @@ public class UserService implements Serviceable {
 
     private static final String USER_DATA = "user_server";
 
+    /*
+     * users are created and edited one at a time, a lock is used instead of
+     * synchronized so a virtual thread waiting for it does not pin its carrier
+     * thread, it is static because OpenDataService creates its own instance
+     */
+    private static final ReentrantLock USERS_LOCK = new ReentrantLock();
+
     @Endpoint(name = "create_user")
-    public synchronized User createUser(Server serv, ClientWorker worker) throws UserExistsException {
-        Database db = new Database(USER_DATA);
-        JSONObject details = worker.getRequestData();
-        String uName = details.optString("name");
-        UserAction uAction = new UserAction(worker, "CREATE_USER " + uName + "");
-        String host = details.optString("host");
-        JSONArray priv = details.optJSONArray("privs");
-        String group = details.optString("group");
-        String password = details.optString("password");
-        String userInterface = details.optString("user_interface");
-        password = password.isEmpty() ? serv.getDefaultPassWord() : password;
-        String[] privs = new String[priv.length()];
+    public User createUser(Server serv, ClientWorker worker) throws UserExistsException {
+        USERS_LOCK.lock();
         try {
-            for (int x = 0; x < privs.length; x++) {
-                privs[x] = priv.get(x).toString().trim();
+            Database db = new Database(USER_DATA);
+            JSONObject details = worker.getRequestData();
+            String uName = details.optString("name");
+            UserAction uAction = new UserAction(worker, "CREATE_USER " + uName + "");
+            String host = details.optString("host");
+            JSONArray priv = details.optJSONArray("privs");
+            String group = details.optString("group");
+            String password = details.optString("password");
+            String userInterface = details.optString("user_interface");
+            password = password.isEmpty() ? serv.getDefaultPassWord() : password;
+            String[] privs = new String[priv.length()];
+            try {
+                for (int x = 0; x < privs.length; x++) {
+                    privs[x] = priv.get(x).toString().trim();
+                }
+            } catch (Exception e) {
+
             }
-        } catch (Exception e) {
 
+            User user = new User(uName, password, host, db, group, uAction, userInterface, privs);
+            worker.setResponseData(Message.SUCCESS);
+            serv.messageToClient(worker);
+            return user;
+        } finally {
+            USERS_LOCK.unlock();
         }
-
-        User user = new User(uName, password, host, db, group, uAction, userInterface, privs);
-        worker.setResponseData(Message.SUCCESS);
-        serv.messageToClient(worker);
-        return user;
-
     }
 
     @Endpoint(name = "delete_user")
@@ -269,46 +289,58 @@ public class UserService implements Serviceable {
     }
 
     @Endpoint(name = "edit_user")
-    public synchronized void editUser(Server serv, ClientWorker worker) {
-        Database db = new Database(USER_DATA);
-        JSONObject details = worker.getRequestData();
-        String name = details.optString("user_name");
-        HttpSession ses = worker.getSession();
-        String uName = (String) ses.getAttribute("username");
-        if (name.equals(serv.getRootUser()) || name.equals(uName)) {
-            worker.setReason("you cannot edit a root user account or your own account");
-            worker.setResponseData(Message.FAIL);
-            serv.messageToClient(worker);
-            return;
-        }
-        String host = details.optString("host");
-        String group = details.optString("group");
-        JSONArray privs = details.optJSONArray("privs");
-        ArrayList userPrivs = new ArrayList();
+    public void editUser(Server serv, ClientWorker worker) {
+        USERS_LOCK.lock();
         try {
-            User user = User.getExistingUser(name, db);
-            JSONArray userPrivileges = user.getUserPrivileges();
-            userPrivs.addAll(userPrivileges.toList());
-            String[] grantPrivs = new String[privs.length()];
-            String[] revokePrivs = new String[userPrivs.size()];
-
-            for (int x = 0; x < privs.length(); x++) {
-                grantPrivs[x] = privs.get(x).toString().trim();
+            final Database db = new Database(USER_DATA);
+            JSONObject details = worker.getRequestData();
+            String name = details.optString("user_name");
+            HttpSession ses = worker.getSession();
+            String uName = (String) ses.getAttribute("username");
+            if (name.equals(serv.getRootUser()) || name.equals(uName)) {
+                worker.setReason("you cannot edit a root user account or your own account");
+                worker.setResponseData(Message.FAIL);
+                serv.messageToClient(worker);
+                return;
             }
-            for (int x = 0; x < userPrivs.size(); x++) {
-                revokePrivs[x] = userPrivs.get(x).toString().trim();
+            final String host = details.optString("host");
+            final String group = details.optString("group");
+            JSONArray privs = details.optJSONArray("privs");
+            ArrayList<Object> userPrivs = new ArrayList<>();
+            try {
+                final User user = User.getExistingUser(name, db);
+                JSONArray userPrivileges = user.getUserPrivileges();
+                userPrivs.addAll(userPrivileges.toList());
+                final String[] grantPrivs = new String[privs.length()];
+                final String[] revokePrivs = new String[userPrivs.size()];
+
+                for (int x = 0; x < privs.length(); x++) {
+                    grantPrivs[x] = privs.get(x).toString().trim();
+                }
+                for (int x = 0; x < userPrivs.size(); x++) {
+                    revokePrivs[x] = userPrivs.get(x).toString().trim();
+                }
+                final UserAction action = new UserAction(worker, "EDIT_USER " + name + "");
+                // all the changes and the audit record are committed together
+                db.inTransaction(new TransactionCallback<Void>() {
+                    @Override
+                    public Void doInTransaction() {
+                        user.setUserProperty("HOST", host, db);
+                        user.setUserProperty("GROUPS", group, db);
+                        user.revokePrivileges(revokePrivs);
+                        user.grantPrivileges(grantPrivs);
+                        action.saveAction();
+                        return null;
+                    }
+                });
+                worker.setResponseData(Message.SUCCESS);
+                serv.messageToClient(worker);
+            } catch (Exception ex) {
+                worker.setResponseData(ex);
+                serv.exceptionToClient(worker);
             }
-            user.setUserProperty("HOST", host, db);
-            user.setUserProperty("GROUPS", group, db);
-            user.revokePrivileges(revokePrivs);
-            user.grantPrivileges(grantPrivs);
-            worker.setResponseData(Message.SUCCESS);
-            serv.messageToClient(worker);
-            UserAction action = new UserAction(worker, "EDIT_USER " + name + "");
-            action.saveAction();
-        } catch (Exception ex) {
-            worker.setResponseData(ex);
-            serv.exceptionToClient(worker);
+        } finally {
+            USERS_LOCK.unlock();
         }
     }
 
@@ -475,11 +507,18 @@ public class UserService implements Serviceable {
         String userName = requestData.optString("name");
         JSONObject details = new JSONObject();
         try {
+            // the privileges are read by name while the user is loaded, the result
+            // has the same column as User.getUserPrivileges()
+            CompletableFuture<JSONObject> privData = db.queryAsync("SELECT PRIVILEGES.GROUP_ID as RESOURCE_GROUP_NAME "
+                    + " FROM PRIVILEGES, USERS WHERE PRIVILEGES.USER_ID=USERS.USER_ID AND USERS.USER_NAME=?", userName);
             User user = User.getExistingUser(userName, db);
             details.put("user_data", user.getUserProperties());
-            details.put("priv_data", user.getUserPrivileges());
+            details.put("priv_data", privData.get().optJSONArray("RESOURCE_GROUP_NAME"));
             worker.setResponseData(details);
             serv.messageToClient(worker);
+        } catch (ExecutionException ex) {
+            worker.setResponseData(ex.getCause());
+            serv.exceptionToClient(worker);
         } catch (Exception ex) {
             worker.setResponseData(ex);
             serv.exceptionToClient(worker);
@@ -512,7 +551,7 @@ public class UserService implements Serviceable {
     @Endpoint(name = "all_user_groups")
     public void getAllUserGroups(Server serv, ClientWorker worker) {
         Database db = new Database(USER_DATA);
-        JSONObject set = db.query("SELECT DISTINCT GROUPS FROM USERS");
+        JSONObject set = db.queryCached("SELECT DISTINCT GROUPS FROM USERS");
 
         worker.setResponseData(set);
         serv.messageToClient(worker);
@@ -525,7 +564,10 @@ public class UserService implements Serviceable {
         JSONObject details = worker.getRequestData();
         String name = details.optString("name");
         int limit = details.optInt("limit");
-        JSONObject actionHistory = User.getActionHistory(name, db, limit);
+        // clients that send a cursor, even an empty one, get the paged result
+        JSONObject actionHistory = details.has("cursor")
+                ? User.getActionHistory(name, db, limit, details.optString("cursor"))
+                : User.getActionHistory(name, db, limit);
         worker.setResponseData(actionHistory);
         serv.messageToClient(worker);
     }
@@ -536,7 +578,9 @@ public class UserService implements Serviceable {
         JSONObject details = worker.getRequestData();
         String name = details.optString("name");
         int limit = details.optInt("limit");
-        JSONObject loginHistory = User.getLoginLog(name, db, limit);
+        JSONObject loginHistory = details.has("cursor")
+                ? User.getLoginLog(name, db, limit, details.optString("cursor"))
+                : User.getLoginLog(name, db, limit);
         worker.setResponseData(loginHistory);
         serv.messageToClient(worker);
     }
@@ -15,5 +15,6 @@ import java.lang.annotation.Target;
 public @interface Endpoint {
     String name();  // the message name
     public String[] shareMethodWith() default {};// the services that can share this method without privileges
+    public long timeout() default -1; // milliseconds the request may take before its statements are cancelled, 0 for no limit, -1 for the request-timeout init parameter
 }
 
@@ -17,4 +17,14 @@ public @interface Model {
     String database(); 
     public String[] columns() default {};
 
+    /**
+     * the secondary indexes of the table, each index is written as its comma
+     * separated columns e.g. "USER_NAME" or "USER_NAME, ACTION_TIME" and is
+     * prefixed with UNIQUE for a unique index. A column may give the length of
+     * the prefix that is indexed e.g. "PASS_WORD(191)". The indexes are named
+     * IDX_ followed by their columns, indexes with such names that are no
+     * longer declared are dropped when the model is initialized
+     */
+    public String[] indexes() default {};
+
 }
\ No newline at end of file
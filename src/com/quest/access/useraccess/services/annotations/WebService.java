@@ -14,6 +14,9 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 public @interface WebService {
     String name();  // the message name
-    int level() default 0;// the services that can share this method without privileges
+    int level() default 0;// the scheduling priority of the threads of the service's bulkhead, 1 (lowest) to 10 (highest), 0 for normal
     String privileged() default "no";
+    int threads() default 0; // the threads of the service's own executor, 0 runs the service on the request thread
+    int queue() default 0; // the requests that may wait for a thread of the service's executor, each one holds a request thread while it waits
+    String rejection() default "abort"; // what happens when the queue is full, abort answers service_busy and caller_runs runs the request on the request thread
 }
@@ -12,8 +12,11 @@ import com.quest.access.useraccess.User;
 import java.io.PrintWriter;
 import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
@@ -39,6 +42,12 @@ public class ClientWorker {
     private Database database;
     private static UniqueRandom randomGen = new UniqueRandom(20);
     private boolean propagateResponse;
+    private final long created;
+    private volatile long deadline;
+    private volatile JSONObject result;
+    private volatile AsyncContext asyncContext;
+    private volatile boolean async;
+    private final AtomicBoolean responded = new AtomicBoolean();
 
     /**
      *
@@ -63,6 +72,7 @@ public class ClientWorker {
         this.propagateResponse = true; //this is true if we wish that this client worker always responds to the client
         this.request = request;
         this.database = new Database("user_server");
+        this.created = System.nanoTime();
     }
 
     @Override
@@ -175,6 +185,46 @@ public class ClientWorker {
         return this.rootId;
     }
 
+    /**
+     * sets the time this request may take counted from when it was received,
+     * the statements executed for it are cancelled once the time is up
+     *
+     * @param timeout the time in milliseconds, 0 for no deadline
+     */
+    public void setTimeout(long timeout) {
+        this.deadline = timeout > 0 ? created + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+    }
+
+    /**
+     * @return the deadline of this request as a System.nanoTime() value or 0
+     * if it has none
+     */
+    public long getDeadline() {
+        return this.deadline;
+    }
+
+    /**
+     * @return the milliseconds left before the deadline of this request, 0 if
+     * it has passed or -1 if the request has no deadline
+     */
+    public long getRemainingTime() {
+        long end = this.deadline;
+        return end == 0 ? -1 : Math.max(0, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()));
+    }
+
+    /**
+     * @return the response of a worker that is part of a multi service
+     * request, it is sent to the client together with the responses of the
+     * other workers of the request. null until the worker has responded
+     */
+    public JSONObject getResult() {
+        return this.result;
+    }
+
+    public void setResult(JSONObject result) {
+        this.result = result;
+    }
+
     public void setReason(String reason) {
         this.reason = reason;
     }
@@ -197,6 +247,9 @@ public class ClientWorker {
      * is completed
      */
     public void toClient(JSONObject resp) {
+        if (!claimResponse()) {
+            return; //the request was already answered e.g. it timed out
+        }
         try {
             JSONObject toClient = new JSONObject();
             toClient.put("response", resp);
@@ -205,6 +258,53 @@ public class ClientWorker {
             writer.println(toClient);
         } catch (Exception ex) {
             System.out.println(ex);
+        } finally {
+            complete();
+        }
+    }
+
+    /**
+     * binds the asynchronous context of the request to this worker, the
+     * context is completed when the worker responds to the client
+     *
+     * @param ctx the context returned by request.startAsync()
+     */
+    public void setAsyncContext(AsyncContext ctx) {
+        this.asyncContext = ctx;
+        this.async = true;
+    }
+
+    /**
+     * claims the response of an asynchronous request, only the first caller
+     * gets true and may write to the response, it must complete the request
+     * afterwards. Requests processed on the container thread always get true
+     *
+     * @return true if the caller may write the response
+     */
+    public boolean claimResponse() {
+        return !async || responded.compareAndSet(false, true);
+    }
+
+    public AsyncContext getAsyncContext() {
+        return this.asyncContext;
+    }
+
+    /**
+     * completes the asynchronous context of the request if it has one and it
+     * is not yet complete, the response is sent to the client
+     */
+    public void complete() {
+        AsyncContext ctx;
+        synchronized (this) {
+            ctx = this.asyncContext;
+            this.asyncContext = null;
+        }
+        if (ctx != null) {
+            try {
+                ctx.complete();
+            } catch (IllegalStateException ex) {
+                //the container already completed the request e.g. after a timeout
+            }
         }
     }
 
@@ -5,15 +5,34 @@
 package com.quest.servlets;
 
 import com.quest.access.common.io;
+import com.quest.access.common.mysql.ConnectionPool;
 import com.quest.access.common.mysql.Database;
+import com.quest.access.common.mysql.DatabaseBusyException;
+import com.quest.access.common.mysql.RequestTimeoutException;
 import com.quest.access.control.Server;
 import com.quest.access.useraccess.Service;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -25,6 +44,23 @@ import org.json.JSONObject;
 
 
 /** 
+ * When the servlet is deployed with asyncSupported the requests are run on a
+ * thread pool owned by this servlet so slow requests do not hold the threads
+ * of the container, the container thread returns once the request is queued.
+ * Init parameters
+ * <ol>
+ * <li>request-threads - the threads running requests, default 64</li>
+ * <li>request-queue - the requests that may wait for a thread, further
+ * requests are answered with server_busy, default 1000</li>
+ * <li>async-timeout - the milliseconds after which the statements of a
+ * request are cancelled and a request that has not responded is answered with
+ * request_timeout, default 60000</li>
+ * <li>virtual-threads - true to run each request on its own virtual thread
+ * instead of the request threads, needs a jdk with virtual threads</li>
+ * <li>max-concurrent-requests - the requests that may run at the same time,
+ * further requests are answered with server_busy, default 1000 with virtual
+ * threads and unbounded otherwise</li>
+ * </ol>
  *
  * @author connie
  */
@@ -34,6 +70,28 @@ public class ServerLink extends HttpServlet {
     
     private static Server server;
 
+    /**
+     * the code sent to clients when a request is rejected because the request
+     * executor is full
+     */
+    public static final String SERVER_BUSY = "server_busy";
+
+    private static ExecutorService executor;
+
+    /*
+     * bounds the requests running at the same time, null when only the
+     * executor bounds them
+     */
+    private static Semaphore concurrency;
+
+    private static long asyncTimeout;
+
+    /*
+     * milliseconds the container waits after async-timeout before it times a
+     * request out, the worker's statements are cancelled at async-timeout
+     */
+    private static final long TIMEOUT_GRACE = 1000;
+
     /** 
      * Processes requests for both HTTP <code>GET</code> and <code>POST</code> methods.
      * @param request servlet request
@@ -59,16 +117,183 @@ public class ServerLink extends HttpServlet {
              JSONObject requestData = (JSONObject)obj.optJSONObject("request_object");
              ClientWorker worker = new ClientWorker(msg, service, requestData, session,response,request);
              if(!authRequired(service,worker) || authValid){
-                 worker.work();
+                 if (executor != null && request.isAsyncSupported()) {
+                     workAsync(worker, request, response);
+                 } else {
+                     worker.work();
+                 }
              }
              else {
                 String value = "to use this service you need a valid auth token"; 
                 sendMessage(response,"auth_required",value);
              }
         } catch (Exception ex) {
-            Logger.getLogger(ServerLink.class.getName()).log(Level.SEVERE, null, ex);
+            failure(response, ex);
+        } finally {
+            Database.clearPrimaryPin();
         }
     }
+
+    /*
+     * releases the container thread and runs the worker on the request
+     * executor. The statements of the worker are cancelled once async-timeout
+     * passes and the container times the request out a moment later, only the
+     * first of the worker and the timeout to claim the response writes to it
+     * and completes the asynchronous context
+     */
+    private void workAsync(final ClientWorker worker, HttpServletRequest request, final HttpServletResponse response) {
+        final Semaphore guard = concurrency;
+        if (guard != null && !guard.tryAcquire()) {
+            //fail fast instead of piling more waiting requests onto the connection pools
+            sendMessage(response, SERVER_BUSY, "Too many requests are in progress");
+            return;
+        }
+        final AtomicReference<Future<?>> task = new AtomicReference<>();
+        //claimed by the task when it starts or by the listener when the request ends first,
+        //whoever claims it releases the permit so it is released exactly once
+        final AtomicBoolean started = new AtomicBoolean();
+        final AsyncContext ctx = request.startAsync();
+        //the deadline cancels the statements first so the endpoint can answer itself
+        worker.setTimeout(asyncTimeout);
+        ctx.setTimeout(asyncTimeout + TIMEOUT_GRACE);
+        ctx.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                Future<?> running = task.get();
+                if (running != null) {
+                    running.cancel(true);
+                }
+                if (started.compareAndSet(false, true) && guard != null) {
+                    guard.release(); //the task never ran and will not
+                }
+                if (worker.claimResponse()) {
+                    sendMessage(response, RequestTimeoutException.ERROR_CODE, "The request took longer than " + asyncTimeout + " ms");
+                    worker.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                if (started.compareAndSet(false, true) && guard != null) {
+                    guard.release();
+                }
+                if (worker.claimResponse()) {
+                    worker.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+            }
+        });
+        worker.setAsyncContext(ctx);
+        try {
+            task.set(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!started.compareAndSet(false, true)) {
+                        return; //the request timed out or failed while queued
+                    }
+                    boolean claimed = false;
+                    Database.setDeadline(worker.getDeadline());
+                    try {
+                        worker.work();
+                    } catch (Exception ex) {
+                        claimed = worker.claimResponse();
+                        if (claimed) {
+                            failure(response, ex);
+                        }
+                    } finally {
+                        Database.setDeadline(0);
+                        Database.clearPrimaryPin();
+                        //complete a request the endpoint did not answer
+                        if (claimed || worker.claimResponse()) {
+                            worker.complete();
+                        }
+                        if (guard != null) {
+                            guard.release();
+                        }
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException ex) {
+            //every request thread is busy and the queue is full, the client may retry later
+            if (worker.claimResponse()) {
+                sendMessage(response, SERVER_BUSY, "Too many requests are in progress");
+                worker.complete();
+            }
+            if (started.compareAndSet(false, true) && guard != null) {
+                guard.release();
+            }
+        }
+    }
+
+    private static void failure(HttpServletResponse response, Exception ex) {
+        DatabaseBusyException busy = DatabaseBusyException.find(ex);
+        if (busy != null) {
+            //fail fast, the client may retry the request later
+            sendMessage(response, DatabaseBusyException.ERROR_CODE, busy.getMessage());
+            return;
+        }
+        RequestTimeoutException timeout = RequestTimeoutException.find(ex);
+        if (timeout != null) {
+            sendMessage(response, RequestTimeoutException.ERROR_CODE, timeout.getMessage());
+            return;
+        }
+        Logger.getLogger(ServerLink.class.getName()).log(Level.SEVERE, null, ex);
+    }
+
+    /*
+     * the executor running the requests of servlets deployed with
+     * asyncSupported, a virtual thread per request when virtual-threads is
+     * true and the jdk has them, otherwise a pool configured with the init
+     * parameters request-threads (default 64) and request-queue (default 1000)
+     */
+    private static ExecutorService createExecutor(ServletConfig config) {
+        if ("true".equals(config.getInitParameter("virtual-threads"))) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return virtual;
+            }
+            io.log("Virtual threads are not available on this jdk, using request-threads", Level.WARNING, ServerLink.class);
+        }
+        int threads = intParam(config, "request-threads", 64);
+        int queue = intParam(config, "request-queue", 1000);
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "quest-request-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /*
+     * Executors.newVirtualThreadPerTaskExecutor() looked up at runtime so the
+     * code still builds and runs on older jdks
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static int intParam(ServletConfig config, String name, int fallback) {
+        String value = config.getInitParameter(name);
+        return value == null || value.trim().isEmpty() ? fallback : Integer.parseInt(value.trim());
+    }
     
     private boolean authRequired(String services,ClientWorker worker){
        StringTokenizer st = new StringTokenizer(services,",");
@@ -150,6 +375,14 @@ public class ServerLink extends HttpServlet {
          String rootUser = config.getInitParameter("root-user");
          String debug = config.getInitParameter("debug-mode");
          Database.setConfig(config);
+         if (executor == null) {
+             executor = createExecutor(config);
+         }
+         //virtual threads are not bounded by a pool so they are bounded here by default
+         boolean virtual = !(executor instanceof ThreadPoolExecutor);
+         int maxConcurrent = intParam(config, "max-concurrent-requests", virtual ? 1000 : 0);
+         concurrency = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+         asyncTimeout = intParam(config, "async-timeout", 60000);
          Database db = new Database("user_server");
          try {
             server = new Server(dbName);
@@ -181,6 +414,19 @@ public class ServerLink extends HttpServlet {
       } 
     }
  
+    @Override
+    public void destroy(){
+         if (server != null) {
+             server.shutdown();
+         }
+         if (executor != null) {
+             executor.shutdown();
+             executor = null;
+         }
+         Database.shutdown();
+         ConnectionPool.shutdown();
+    }
+ 
     public static Server getServerInstance(){
         return server;
     }
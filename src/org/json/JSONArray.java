@@ -16,6 +16,9 @@
 
 package org.json;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -55,6 +58,22 @@ public class JSONArray implements java.io.Serializable {
         values = new ArrayList<Object>();
     }
 
+    private JSONArray(List<Object> values) {
+        this.values = values;
+    }
+
+    /**
+     * Creates a {@code JSONArray} backed by the given list without copying it,
+     * changes to the list are visible through the array and the other way
+     * round. A list that is not serializable is copied when the array is
+     * serialized.
+     *
+     * @param values a list whose values are of supported types.
+     */
+    public static JSONArray wrap(List<Object> values) {
+        return new JSONArray(values);
+    }
+
     /**
      * Creates a new {@code JSONArray} by copying all values from the given
      * collection.
@@ -591,4 +610,10 @@ public class JSONArray implements java.io.Serializable {
         // diverge from the original, which doesn't implement hashCode
         return values.hashCode();
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("values", values instanceof Serializable ? values : new ArrayList<Object>(values));
+        out.writeFields();
+    }
 }
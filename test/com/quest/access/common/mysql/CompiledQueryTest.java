@@ -0,0 +1,37 @@
+package com.quest.access.common.mysql;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author connie
+ */
+public class CompiledQueryTest {
+
+    private final Database db = new Database("compiled_test");
+
+    @Test
+    public void testPlaceholdersAreCounted() {
+        assertEquals(0, new CompiledQuery(db, "SELECT * FROM USERS").getParameterCount());
+        assertEquals(2, new CompiledQuery(db, "UPDATE CONF_DATA SET CONF_VALUE=? WHERE CONF_KEY=?").getParameterCount());
+    }
+
+    @Test
+    public void testQuotedPlaceholdersAreIgnored() {
+        assertEquals(1, new CompiledQuery(db, "SELECT '?', \"?\", `?` FROM USERS WHERE USER_NAME=?").getParameterCount());
+        assertEquals(1, new CompiledQuery(db, "SELECT 'it\\'s ?' FROM USERS WHERE USER_NAME=?").getParameterCount());
+        assertEquals(1, new CompiledQuery(db, "SELECT 'a' FROM USERS WHERE USER_NAME=? AND HOST='?'").getParameterCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooFewValuesAreRejected() {
+        new CompiledQuery(db, "SELECT * FROM USERS WHERE USER_NAME=? AND HOST=?").execute("root");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyValuesAreRejected() {
+        new CompiledQuery(db, "SELECT * FROM USERS").execute("root");
+    }
+
+}
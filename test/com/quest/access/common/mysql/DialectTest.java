@@ -0,0 +1,65 @@
+package com.quest.access.common.mysql;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author connie
+ */
+public class DialectTest {
+
+    private final Dialect mysql = new MySqlDialect();
+
+    private final Dialect h2 = new H2Dialect();
+
+    @Test
+    public void testForStatus() {
+        assertTrue(Dialect.forStatus("embedded") instanceof H2Dialect);
+        assertTrue(Dialect.forStatus("online") instanceof MySqlDialect);
+        assertTrue(Dialect.forStatus(null) instanceof MySqlDialect);
+    }
+
+    @Test
+    public void testMySqlAlterTableIsOneStatement() {
+        String[] sql = mysql.alterTable("USERS", Arrays.asList("ADD HOST TEXT AFTER USER_NAME", "ADD INDEX IDX_HOST (HOST(191))"), false);
+        assertArrayEquals(new String[]{"ALTER TABLE USERS ADD HOST TEXT AFTER USER_NAME, ADD INDEX IDX_HOST (HOST(191))"}, sql);
+    }
+
+    @Test
+    public void testMySqlAlterTableInplace() {
+        String[] sql = mysql.alterTable("USERS", Arrays.asList("ADD INDEX IDX_HOST (HOST)"), true);
+        assertArrayEquals(new String[]{"ALTER TABLE USERS ADD INDEX IDX_HOST (HOST), ALGORITHM=INPLACE"}, sql);
+    }
+
+    @Test
+    public void testH2AlterTableSplitsChanges() {
+        String[] sql = h2.alterTable("USERS", Arrays.asList(
+                "ADD HOST TEXT",
+                "DROP INDEX IDX_HOST",
+                "ADD UNIQUE INDEX IDX_NAME (USER_NAME)",
+                "ADD INDEX IDX_HOST (HOST)"), true);
+        assertArrayEquals(new String[]{
+            "ALTER TABLE USERS ADD HOST TEXT",
+            "DROP INDEX IF EXISTS IDX_USERS_HOST",
+            "CREATE UNIQUE INDEX IDX_USERS_NAME ON USERS (USER_NAME)",
+            "CREATE INDEX IDX_USERS_HOST ON USERS (HOST)"}, sql);
+    }
+
+    @Test
+    public void testUpsert() {
+        assertEquals("INSERT INTO CONF_DATA (CONF_KEY, CONF_VALUE) VALUES (?, ?) ON DUPLICATE KEY UPDATE CONF_VALUE=VALUES(CONF_VALUE)",
+                mysql.upsert("CONF_DATA", "CONF_KEY", "CONF_VALUE"));
+        assertEquals("MERGE INTO CONF_DATA (CONF_KEY, CONF_VALUE) KEY (CONF_KEY) VALUES (?, ?)",
+                h2.upsert("CONF_DATA", "CONF_KEY", "CONF_VALUE"));
+    }
+
+    @Test
+    public void testStreamFetchSize() {
+        assertEquals(Integer.MIN_VALUE, mysql.getStreamFetchSize("jdbc:mysql://localhost/rewriteBatchedStatements=true"));
+        assertEquals(500, mysql.getStreamFetchSize("jdbc:mysql://localhost/useCursorFetch=true"));
+        assertTrue(h2.getStreamFetchSize("jdbc:h2:mem:") > 0);
+    }
+
+}
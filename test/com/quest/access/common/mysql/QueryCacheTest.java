@@ -0,0 +1,108 @@
+package com.quest.access.common.mysql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletConfig;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author connie
+ */
+public class QueryCacheTest {
+
+    private final Database db = new Database("cache_test");
+
+    @Before
+    public void setUp() {
+        QueryCache.configure(config("2", "60000"));
+    }
+
+    @After
+    public void tearDown() {
+        QueryCache.configure(config("0", "60000"));
+    }
+
+    @Test
+    public void testHitReturnsCopy() throws JSONException {
+        String sql = "SELECT * FROM USERS WHERE USER_NAME=?";
+        QueryCache.put(db, sql, new String[]{"root"}, result("USER_NAME", "root"), QueryCache.generation());
+        JSONObject first = QueryCache.get(db, sql, new String[]{"root"});
+        assertEquals("root", first.getJSONArray("USER_NAME").getString(0));
+        first.getJSONArray("USER_NAME").put(0, "changed");
+        assertEquals("root", QueryCache.get(db, sql, new String[]{"root"}).getJSONArray("USER_NAME").getString(0));
+        assertNull(QueryCache.get(db, sql, new String[]{"other"}));
+    }
+
+    @Test
+    public void testWriteInvalidatesReadersOfTable() throws JSONException {
+        String users = "SELECT * FROM USERS u JOIN PRIVILEGES p ON u.USER_ID=p.USER_ID";
+        String settings = "SELECT * FROM CONF_DATA";
+        QueryCache.put(db, users, null, result("USER_ID", "1"), QueryCache.generation());
+        QueryCache.put(db, settings, null, result("CONF_KEY", "a"), QueryCache.generation());
+        QueryCache.invalidate(db, "UPDATE privileges SET GROUP_ID=? WHERE USER_ID=?");
+        assertNull(QueryCache.get(db, users, null));
+        assertNotNull(QueryCache.get(db, settings, null));
+    }
+
+    @Test
+    public void testResultReadBeforeWriteIsNotCached() throws JSONException {
+        String sql = "SELECT * FROM USERS";
+        long readAt = QueryCache.generation();
+        QueryCache.invalidateTable(db, "USERS");
+        QueryCache.put(db, sql, null, result("USER_ID", "1"), readAt);
+        assertNull(QueryCache.get(db, sql, null));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws JSONException {
+        QueryCache.put(db, "SELECT * FROM A", null, result("X", "a"), QueryCache.generation());
+        QueryCache.put(db, "SELECT * FROM B", null, result("X", "b"), QueryCache.generation());
+        assertNotNull(QueryCache.get(db, "SELECT * FROM A", null));
+        QueryCache.put(db, "SELECT * FROM C", null, result("X", "c"), QueryCache.generation());
+        assertNull(QueryCache.get(db, "SELECT * FROM B", null));
+        assertNotNull(QueryCache.get(db, "SELECT * FROM A", null));
+        assertNotNull(QueryCache.get(db, "SELECT * FROM C", null));
+    }
+
+    @Test
+    public void testSelectWithoutTableIsNotCached() throws JSONException {
+        QueryCache.put(db, "SELECT NOW()", null, result("NOW()", "1"), QueryCache.generation());
+        assertNull(QueryCache.get(db, "SELECT NOW()", null));
+    }
+
+    @Test
+    public void testSizeZeroDisablesCache() {
+        assertTrue(QueryCache.isEnabled());
+        QueryCache.configure(config("0", "60000"));
+        assertFalse(QueryCache.isEnabled());
+    }
+
+    private static JSONObject result(String column, String value) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put(column, new JSONArray().put(value));
+        return result;
+    }
+
+    private static ServletConfig config(String size, String ttl) {
+        final Map<String, String> params = new HashMap<>();
+        params.put("query-cache-size", size);
+        params.put("query-cache-ttl", ttl);
+        return (ServletConfig) Proxy.newProxyInstance(ServletConfig.class.getClassLoader(), new Class<?>[]{ServletConfig.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("getInitParameter") ? params.get((String) args[0]) : null;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.quest.access.common.mysql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author connie
+ */
+public class StatementCacheTest {
+
+    /*
+     * the sql of every statement prepared on the fake connection
+     */
+    private final List<String> prepared = new ArrayList<>();
+
+    private final Set<PreparedStatement> closed = new HashSet<>();
+
+    @Test
+    public void testStatementIsReused() throws SQLException {
+        StatementCache cache = new StatementCache(connection(), 2);
+        PreparedStatement first = cache.prepare("SELECT * FROM USERS WHERE USER_ID=?");
+        cache.release("SELECT * FROM USERS WHERE USER_ID=?", first);
+        PreparedStatement second = cache.prepare("SELECT * FROM USERS WHERE USER_ID=?");
+        assertSame(first, second);
+        assertEquals(1, prepared.size());
+        assertFalse(closed.contains(first));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsClosed() throws SQLException {
+        StatementCache cache = new StatementCache(connection(), 2);
+        PreparedStatement a = cache.prepare("SELECT A");
+        PreparedStatement b = cache.prepare("SELECT B");
+        cache.prepare("SELECT A");
+        cache.prepare("SELECT C");
+        assertTrue(closed.contains(b));
+        assertFalse(closed.contains(a));
+        assertSame(a, cache.prepare("SELECT A"));
+        assertEquals(3, prepared.size());
+    }
+
+    @Test
+    public void testClosedStatementIsPreparedAgain() throws SQLException {
+        StatementCache cache = new StatementCache(connection(), 2);
+        PreparedStatement first = cache.prepare("SELECT A");
+        first.close();
+        assertNotSame(first, cache.prepare("SELECT A"));
+        assertEquals(2, prepared.size());
+    }
+
+    @Test
+    public void testSizeZeroClosesOnRelease() throws SQLException {
+        StatementCache cache = new StatementCache(connection(), 0);
+        PreparedStatement first = cache.prepare("SELECT A");
+        cache.release("SELECT A", first);
+        assertTrue(closed.contains(first));
+        assertNotSame(first, cache.prepare("SELECT A"));
+    }
+
+    @Test
+    public void testHitsAndMissesAreCounted() throws Exception {
+        StatementCache cache = new StatementCache(connection(), 2);
+        String sql = "SELECT COUNT_TEST FROM DUAL";
+        cache.prepare(sql);
+        cache.prepare(sql);
+        cache.prepare(sql);
+        assertEquals(2, StatementCache.getStatistics().getJSONObject(sql).getLong("hits"));
+        assertEquals(1, StatementCache.getStatistics().getJSONObject(sql).getLong("misses"));
+    }
+
+    private Connection connection() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("prepareStatement")) {
+                    prepared.add((String) args[0]);
+                    return statement();
+                }
+                return null;
+            }
+        });
+    }
+
+    private PreparedStatement statement() {
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "close":
+                        closed.add((PreparedStatement) proxy);
+                        return null;
+                    case "isClosed":
+                        return closed.contains((PreparedStatement) proxy);
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return null;
+                }
+            }
+        });
+    }
+
+}
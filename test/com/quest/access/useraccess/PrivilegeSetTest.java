@@ -0,0 +1,107 @@
+package com.quest.access.useraccess;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.HttpSession;
+import org.json.JSONArray;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author connie
+ */
+public class PrivilegeSetTest {
+
+    @Test
+    public void testContains() {
+        PrivilegeSet set = PrivilegeSet.of(new JSONArray().put("user_service").put("open_data_service"));
+        assertTrue(set.contains("user_service"));
+        assertTrue(set.contains("open_data_service"));
+        assertFalse(set.contains("pos_service"));
+        assertFalse(set.contains(null));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void testEqualSetsAreShared() {
+        PrivilegeSet first = PrivilegeSet.of(new JSONArray().put("a_service").put("b_service"));
+        PrivilegeSet second = PrivilegeSet.of(new JSONArray().put("b_service").put("a_service").put("a_service"));
+        assertSame(first, second);
+        assertNotSame(first, PrivilegeSet.of(new JSONArray().put("a_service")));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertSame(PrivilegeSet.EMPTY, PrivilegeSet.of(null));
+        assertSame(PrivilegeSet.EMPTY, PrivilegeSet.of(new JSONArray()));
+        assertEquals(0, PrivilegeSet.EMPTY.size());
+        assertFalse(PrivilegeSet.EMPTY.contains("user_service"));
+    }
+
+    @Test
+    public void testManyPrivileges() {
+        JSONArray names = new JSONArray();
+        for (int x = 0; x < 130; x++) {
+            names.put("many_" + x);
+        }
+        PrivilegeSet set = PrivilegeSet.of(names);
+        assertEquals(130, set.size());
+        assertTrue(set.contains("many_0"));
+        assertTrue(set.contains("many_129"));
+        assertEquals(130, set.toJSONArray().length());
+    }
+
+    @Test
+    public void testSerializedByNames() throws Exception {
+        PrivilegeSet set = PrivilegeSet.of(new JSONArray().put("user_service").put("c_service"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(set);
+        out.close();
+        Object read = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertSame(set, read);
+    }
+
+    @Test
+    public void testSessionWithNamesIsMigrated() {
+        HttpSession ses = session();
+        ses.setAttribute("privileges", new JSONArray().put("user_service"));
+        PrivilegeSet set = PrivilegeSet.fromSession(ses);
+        assertTrue(set.contains("user_service"));
+        assertSame(set, ses.getAttribute("privileges"));
+        assertSame(set, PrivilegeSet.fromSession(ses));
+    }
+
+    @Test
+    public void testSessionWithoutPrivileges() {
+        assertNull(PrivilegeSet.fromSession(null));
+        assertNull(PrivilegeSet.fromSession(session()));
+    }
+
+    private static HttpSession session() {
+        final Map<String, Object> attributes = new HashMap<>();
+        return (HttpSession) Proxy.newProxyInstance(HttpSession.class.getClassLoader(), new Class<?>[]{HttpSession.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getAttribute":
+                        return attributes.get((String) args[0]);
+                    case "setAttribute":
+                        attributes.put((String) args[0], args[1]);
+                        return null;
+                    default:
+                        return null;
+                }
+            }
+        });
+    }
+
+}
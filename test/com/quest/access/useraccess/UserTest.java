@@ -0,0 +1,35 @@
+package com.quest.access.useraccess;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author connie
+ */
+public class UserTest {
+
+    @Test
+    public void testCursorRoundTrip() {
+        String cursor = User.encodeCursor("2026-10-17 23:06:47.0", "1234567890");
+        assertArrayEquals(new String[]{"2026-10-17 23:06:47.0", "1234567890"}, User.decodeCursor(cursor));
+    }
+
+    @Test
+    public void testCursorIsUrlSafe() {
+        String cursor = User.encodeCursor("??>>", "~~~");
+        assertTrue(cursor.matches("[A-Za-z0-9_-]+"));
+        assertArrayEquals(new String[]{"??>>", "~~~"}, User.decodeCursor(cursor));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedCursorIsRejected() {
+        User.decodeCursor("not a cursor!");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCursorWithoutIdIsRejected() {
+        User.decodeCursor("MTIzNA");
+    }
+
+}